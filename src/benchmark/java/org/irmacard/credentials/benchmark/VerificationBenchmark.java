@@ -0,0 +1,305 @@
+/**
+ * VerificationBenchmark.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials.benchmark;
+
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ProtocolCommand;
+import net.sf.scuba.smartcards.ProtocolCommands;
+import net.sf.scuba.smartcards.ProtocolResponse;
+import net.sf.scuba.smartcards.ProtocolResponses;
+import net.sf.scuba.smartcards.ResponseAPDU;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.irmacard.credentials.NonceProvider;
+import org.irmacard.credentials.util.CardAuthenticationService;
+import org.irmacard.credentials.util.CipherSuite;
+import org.irmacard.credentials.util.SecureMessagingWrapper;
+import org.irmacard.credentials.util.SimulatedCardService;
+
+/**
+ * Load generator for complete verification sessions against simulated
+ * cards: card authentication, wrapped proof commands, unWrapAsync and
+ * verification of the responses. Each worker thread drives its own card, as
+ * a terminal with its own reader would.
+ *
+ * The proof is a stand-in with the shape of a real one: a number of
+ * commands carrying the nonce, answered with data derived from the nonce
+ * that the host checks. This keeps the numbers comparable between releases
+ * while measuring the code in this library.
+ *
+ * Options are given as key=value arguments, see {@link #DEFAULTS}. The
+ * report contains the throughput in sessions per second and the p50, p99
+ * and p999 session latency.
+ */
+public class VerificationBenchmark {
+
+	private static final byte INS_PROOF = (byte) 0x40;
+	private static final String PIN = "0000";
+
+	/** Options and their default values */
+	static final String[][] DEFAULTS = {
+		{ "concurrency", "4" },      // number of simulated cards
+		{ "duration", "30" },        // measured seconds
+		{ "warmup", "5" },           // seconds before measuring
+		{ "commands", "10" },        // proof commands per session
+		{ "responseSize", "128" },   // bytes of data per proof response
+		{ "latency", "0" },          // card latency per command, microseconds
+		{ "jitter", "0" },           // maximum random extra latency, microseconds
+		{ "authLatency", "0" },      // extra latency of INTERNAL AUTHENTICATE, microseconds
+		{ "errorRate", "0" },        // fraction of commands answered with an error
+		{ "modulusBits", "1024" },   // size of the card authentication modulus
+		{ "nonceBits", "80" },       // size of the verification nonce
+		{ "suite", "DESEDE" },       // secure messaging cipher suite
+		{ "extendedLength", "true" }, // whether the cards support extended length apdus
+	};
+
+	private final Map<String, String> options;
+	private final int commands, responseSize;
+	private final BigInteger modulus, exponent = BigInteger.valueOf(65537);
+	private final NonceProvider nonces;
+	private final CipherSuite suite;
+
+	private final AtomicLong failures = new AtomicLong();
+
+	VerificationBenchmark(Map<String, String> options) {
+		this.options = options;
+		this.commands = getInt("commands");
+		this.responseSize = getInt("responseSize");
+		this.modulus = BigInteger.ONE.shiftLeft(getInt("modulusBits")).subtract(BigInteger.ONE);
+		this.nonces = new NonceProvider(getInt("nonceBits"), 1024, 1);
+		this.suite = CipherSuite.valueOf(options.get("suite"));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for (String[] option : DEFAULTS) {
+			options.put(option[0], option[1]);
+		}
+		for (String arg : args) {
+			int i = arg.indexOf('=');
+			if (i < 0 || !options.containsKey(arg.substring(0, i))) {
+				System.err.println("Unknown option: " + arg);
+				System.err.println("Options (key=default):");
+				for (String[] option : DEFAULTS) {
+					System.err.println("  " + option[0] + "=" + option[1]);
+				}
+				System.exit(1);
+			}
+			options.put(arg.substring(0, i), arg.substring(i + 1));
+		}
+
+		Security.addProvider(new BouncyCastleProvider());
+		new VerificationBenchmark(options).run();
+	}
+
+	void run() throws InterruptedException {
+		int concurrency = getInt("concurrency");
+		long now = System.nanoTime();
+		long start = now + TimeUnit.SECONDS.toNanos(getInt("warmup"));
+		long end = start + TimeUnit.SECONDS.toNanos(getInt("duration"));
+
+		Worker[] workers = new Worker[concurrency];
+		CountDownLatch done = new CountDownLatch(concurrency);
+		for (int i = 0; i < concurrency; i++) {
+			workers[i] = new Worker(createCard(), start, end, done);
+		}
+		for (int i = 0; i < concurrency; i++) {
+			new Thread(workers[i], "benchmark-" + i).start();
+		}
+		done.await();
+		nonces.shutdown();
+
+		int count = 0;
+		for (Worker worker : workers) {
+			count += worker.count;
+		}
+		long[] latencies = new long[count];
+		int offset = 0;
+		for (Worker worker : workers) {
+			System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+			offset += worker.count;
+		}
+		Arrays.sort(latencies);
+
+		double seconds = (end - start) / 1e9;
+		System.out.println("Options:     " + options);
+		System.out.printf("Sessions:    %d completed, %d failed%n", count, failures.get());
+		System.out.printf("Throughput:  %.1f sessions/s%n", count / seconds);
+		System.out.printf("Latency p50:  %.3f ms%n", percentile(latencies, 0.50) / 1e6);
+		System.out.printf("Latency p99:  %.3f ms%n", percentile(latencies, 0.99) / 1e6);
+		System.out.printf("Latency p999: %.3f ms%n", percentile(latencies, 0.999) / 1e6);
+	}
+
+	private static long percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		int i = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+	}
+
+	private SimulatedCardService createCard() {
+		SimulatedCardService card = new SimulatedCardService(PIN, new SimulatedCardService.Application() {
+			public ResponseAPDU process(CommandAPDU command) {
+				if ((byte) command.getINS() != INS_PROOF) {
+					return new ResponseAPDU(new byte[] { 0x6D, 0x00 });
+				}
+				byte[] data = proof(command.getData(), command.getP1(), responseSize);
+				byte[] response = Arrays.copyOf(data, data.length + 2);
+				response[data.length] = (byte) 0x90;
+				return new ResponseAPDU(response);
+			}
+		});
+		card.setLatency(getInt("latency"), getInt("jitter"), TimeUnit.MICROSECONDS);
+		card.setAuthenticationLatency(getInt("authLatency"), TimeUnit.MICROSECONDS);
+		card.setErrorRate(Double.parseDouble(options.get("errorRate")), 0x6F00);
+		card.setExtendedLength(Boolean.parseBoolean(options.get("extendedLength")));
+		return card;
+	}
+
+	/**
+	 * A complete verification session.
+	 */
+	boolean session(SimulatedCardService card) throws CardServiceException {
+		card.open();
+		try {
+			CardAuthenticationService auth = new CardAuthenticationService(card);
+			SecureMessagingWrapper wrapper = auth.authenticateCard(modulus, exponent, suite);
+			try {
+				BigInteger nonce = nonces.next();
+				byte[] nonceBytes = nonce.toByteArray();
+				ProtocolCommands commands = new ProtocolCommands();
+				for (int i = 0; i < this.commands; i++) {
+					commands.add(new ProtocolCommand("proof" + i, "Proof step " + i,
+							new CommandAPDU(0x80, INS_PROOF, i, 0x00, nonceBytes, responseSize)));
+				}
+
+				long ssc = wrapper.getSendSequenceCounter();
+				wrapper.wrapAsync(commands);
+				ProtocolResponses responses = new ProtocolResponses();
+				for (ProtocolCommand c : commands) {
+					responses.put(c.getKey(), new ProtocolResponse(c.getKey(), card.transmit(c.getAPDU())));
+				}
+				wrapper.unWrapAsync(commands, responses, ssc + 1);
+
+				for (int i = 0; i < this.commands; i++) {
+					ResponseAPDU response = responses.get("proof" + i).getAPDU();
+					if (response.getSW() != 0x9000
+							|| !Arrays.equals(response.getData(), proof(nonceBytes, i, responseSize))) {
+						return false;
+					}
+				}
+				return true;
+			} finally {
+				wrapper.close();
+			}
+		} finally {
+			card.close();
+		}
+	}
+
+	/**
+	 * The response of the simulated card to a proof command.
+	 */
+	static byte[] proof(byte[] nonce, int index, int length) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] out = new byte[length];
+		for (int offset = 0, block = 0; offset < length; block++) {
+			digest.update(nonce);
+			digest.update(new byte[] { (byte) index, (byte) block });
+			byte[] hash = digest.digest();
+			int n = Math.min(hash.length, length - offset);
+			System.arraycopy(hash, 0, out, offset, n);
+			offset += n;
+		}
+		return out;
+	}
+
+	private int getInt(String option) {
+		return Integer.parseInt(options.get(option));
+	}
+
+	private class Worker implements Runnable {
+		final SimulatedCardService card;
+		final long start, end;
+		final CountDownLatch done;
+		long[] latencies = new long[1024];
+		int count;
+
+		Worker(SimulatedCardService card, long start, long end, CountDownLatch done) {
+			this.card = card;
+			this.start = start;
+			this.end = end;
+			this.done = done;
+		}
+
+		public void run() {
+			try {
+				measure();
+			} finally {
+				done.countDown();
+			}
+		}
+
+		private void measure() {
+			long now;
+			while ((now = System.nanoTime()) < end) {
+				boolean ok;
+				try {
+					ok = session(card);
+				} catch (CardServiceException e) {
+					ok = false;
+				} catch (RuntimeException e) {
+					// Secure messaging errors surface as IllegalStateException
+					ok = false;
+				}
+				long finished = System.nanoTime();
+				if (now < start || finished > end) {
+					continue;
+				}
+				if (!ok) {
+					failures.incrementAndGet();
+					continue;
+				}
+				if (count == latencies.length) {
+					latencies = Arrays.copyOf(latencies, count * 2);
+				}
+				latencies[count++] = finished - now;
+			}
+		}
+	}
+}
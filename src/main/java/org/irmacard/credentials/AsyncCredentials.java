@@ -0,0 +1,100 @@
+/**
+ * AsyncCredentials.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import net.sf.scuba.smartcards.ProtocolCommand;
+import net.sf.scuba.smartcards.ProtocolResponses;
+
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.VerificationDescription;
+import org.irmacard.credentials.keys.PrivateKey;
+import org.irmacard.credentials.spec.VerifySpecification;
+
+/**
+ * Asynchronous counterpart of the {@link Credentials} interface. Every
+ * operation returns immediately, the work is performed on the given executor.
+ * Failures complete the returned future exceptionally, usually with a
+ * {@link CredentialsException}.
+ * 
+ * @see AsyncCredentialsAdapter
+ */
+public interface AsyncCredentials {
+
+	/**
+	 * Issue a credential to the user according to the provided specification
+	 * containing the specified values.
+	 * 
+	 * @see Credentials#issue(CredentialDescription, PrivateKey, Attributes, Date)
+	 * @param executor to run the issuance on.
+	 * @return a future that completes when the issuance is done.
+	 */
+	public CompletableFuture<Void> issue(CredentialDescription specification,
+			PrivateKey pkey, Attributes values, Date expires, Executor executor);
+
+	/**
+	 * Verify a number of attributes listed in the specification.
+	 * 
+	 * @see Credentials#verify(VerifySpecification)
+	 * @param executor to run the verification on.
+	 * @return a future for the disclosed attributes, or null if verification
+	 *         failed.
+	 */
+	public CompletableFuture<Attributes> verify(VerifySpecification specification,
+			Executor executor);
+
+	/**
+	 * Create the ProtocolCommands necessary to request a proof from the card.
+	 * 
+	 * @see Credentials#requestProofCommands(VerificationDescription, BigInteger)
+	 * @param executor to create the commands on.
+	 * @return a future for the commands.
+	 */
+	public CompletableFuture<List<ProtocolCommand>> requestProofCommands(
+			VerificationDescription specification, BigInteger nonce, Executor executor);
+
+	/**
+	 * Compile the cards responses into a proof and check this proof for
+	 * correctness.
+	 * 
+	 * @see Credentials#verifyProofResponses(VerificationDescription, BigInteger, ProtocolResponses)
+	 * @param executor to check the proof on.
+	 * @return a future for the disclosed attributes, or null if verification
+	 *         failed.
+	 */
+	public CompletableFuture<Attributes> verifyProofResponses(
+			VerificationDescription specification, BigInteger nonce,
+			ProtocolResponses responses, Executor executor);
+
+	/**
+	 * Generate a nonce for use in the asynchronous API.
+	 * 
+	 * @see Credentials#generateNonce(VerifySpecification)
+	 * @param executor to generate the nonce on.
+	 * @return a future for the nonce.
+	 */
+	public CompletableFuture<Nonce> generateNonce(VerifySpecification specification,
+			Executor executor);
+}
@@ -0,0 +1,143 @@
+/**
+ * AsyncCredentialsAdapter.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+import java.math.BigInteger;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import net.sf.scuba.smartcards.ProtocolCommand;
+import net.sf.scuba.smartcards.ProtocolResponses;
+
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.VerificationDescription;
+import org.irmacard.credentials.keys.PrivateKey;
+import org.irmacard.credentials.spec.VerifySpecification;
+
+/**
+ * Provides the asynchronous API on top of a blocking Credentials
+ * implementation. Each operation is submitted as a task to the given
+ * executor, so the calling thread is never blocked. The executor determines
+ * how many sessions can be in progress at the same time; an executor that
+ * runs every task on its own lightweight thread lets a single node serve
+ * many concurrent sessions.
+ * 
+ * The wrapped Credentials object is shared by all tasks, so it must be safe
+ * to use from multiple threads at once, unless the executor runs only one
+ * task at a time.
+ */
+public class AsyncCredentialsAdapter implements AsyncCredentials {
+	private final Credentials credentials;
+
+	/**
+	 * Create an asynchronous API for the given credentials provider.
+	 * @param credentials the blocking implementation to use.
+	 */
+	public AsyncCredentialsAdapter(Credentials credentials) {
+		this.credentials = credentials;
+	}
+
+	/**
+	 * @return the wrapped credentials provider.
+	 */
+	public Credentials getCredentials() {
+		return credentials;
+	}
+
+	public CompletableFuture<Void> issue(final CredentialDescription specification,
+			final PrivateKey pkey, final Attributes values, final Date expires,
+			Executor executor) {
+		return submit(new Callable<Void>() {
+			public Void call() throws CredentialsException {
+				credentials.issue(specification, pkey, values, expires);
+				return null;
+			}
+		}, executor);
+	}
+
+	public CompletableFuture<Attributes> verify(final VerifySpecification specification,
+			Executor executor) {
+		return submit(new Callable<Attributes>() {
+			public Attributes call() throws CredentialsException {
+				return credentials.verify(specification);
+			}
+		}, executor);
+	}
+
+	public CompletableFuture<List<ProtocolCommand>> requestProofCommands(
+			final VerificationDescription specification, final BigInteger nonce,
+			Executor executor) {
+		return submit(new Callable<List<ProtocolCommand>>() {
+			public List<ProtocolCommand> call() throws CredentialsException {
+				return credentials.requestProofCommands(specification, nonce);
+			}
+		}, executor);
+	}
+
+	public CompletableFuture<Attributes> verifyProofResponses(
+			final VerificationDescription specification, final BigInteger nonce,
+			final ProtocolResponses responses, Executor executor) {
+		return submit(new Callable<Attributes>() {
+			public Attributes call() throws CredentialsException {
+				return credentials.verifyProofResponses(specification, nonce, responses);
+			}
+		}, executor);
+	}
+
+	public CompletableFuture<Nonce> generateNonce(final VerifySpecification specification,
+			Executor executor) {
+		return submit(new Callable<Nonce>() {
+			public Nonce call() throws CredentialsException {
+				return credentials.generateNonce(specification);
+			}
+		}, executor);
+	}
+
+	/**
+	 * Run the task on the executor, and complete the returned future with its
+	 * result. If the executor rejects the task, the future completes
+	 * exceptionally with a CredentialsException.
+	 */
+	static <T> CompletableFuture<T> submit(final Callable<T> task, Executor executor) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					if (future.isDone()) {
+						// Cancelled before it started
+						return;
+					}
+					try {
+						future.complete(task.call());
+					} catch (Throwable e) {
+						future.completeExceptionally(e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			future.completeExceptionally(new CredentialsException("Task rejected", e));
+		}
+		return future;
+	}
+}
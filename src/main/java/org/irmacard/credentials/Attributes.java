@@ -22,7 +22,6 @@ package org.irmacard.credentials;
 
 import java.io.Serializable;
 import java.math.BigInteger;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
@@ -56,6 +55,11 @@ public class Attributes implements Serializable {
 
 	// TODO: provide an implementation for attribute storage.
 	private Map<String, byte[]> attributes;
+
+	/**
+	 * Cached number encodings of the attribute values, see getBigInteger().
+	 */
+	private transient Map<String, BigInteger> numbers;
 	
 	public Attributes() {
 		attributes = new HashMap<String, byte[]>();
@@ -68,28 +72,85 @@ public class Attributes implements Serializable {
 		// Set expire date meta-field to default value
 		setExpireDate(null);
 	}
+
+	/**
+	 * Create a container backed by the given storage, without creating the
+	 * meta-data field. Subclasses that store the attributes differently pass
+	 * null here, and override {@link #add(String, byte[])},
+	 * {@link #get(String)} and {@link #getIdentifiers()}.
+	 * @param attributes storage for the attributes.
+	 */
+	protected Attributes(Map<String, byte[]> attributes) {
+		this.attributes = attributes;
+	}
 	
 	public void add(String id, byte[] value) {
 		attributes.put(id, value);
+		invalidate(id);
 	}
 	
 	public byte[] get(String id) {
 		return attributes.get(id);
 	}
 
+	/**
+	 * Get the value of an attribute as a number, i.e. the value interpreted
+	 * as an unsigned big-endian integer. The number is computed once, and
+	 * cached until the attribute is replaced using add(). Note that changes
+	 * made directly to the array returned by get() are not noticed.
+	 * @param id of the attribute.
+	 * @return the value as a number, or null if there is no such attribute.
+	 */
+	public BigInteger getBigInteger(String id) {
+		if (numbers == null) {
+			numbers = new HashMap<String, BigInteger>();
+		}
+		BigInteger number = numbers.get(id);
+		if (number == null) {
+			byte[] value = get(id);
+			if (value == null) {
+				return null;
+			}
+			number = new BigInteger(1, value);
+			numbers.put(id, number);
+		}
+		return number;
+	}
+
+	/**
+	 * Drop the cached number encoding of an attribute, subclasses must call
+	 * this whenever the value of an attribute changes.
+	 * @param id of the attribute.
+	 */
+	protected void invalidate(String id) {
+		if (numbers != null) {
+			numbers.remove(id);
+		}
+	}
+
 	public Set<String> getIdentifiers() {
 		return attributes.keySet();
 	}
 
+	/**
+	 * Get an immutable snapshot of these attributes, which can be shared
+	 * between threads and cached without copying. Later changes to these
+	 * attributes do not affect the snapshot.
+	 * @return the snapshot.
+	 */
+	public ImmutableAttributes freeze() {
+		return new ImmutableAttributes(this);
+	}
+
 	public void print() {
-		for(String k : attributes.keySet() ) {
+		for(String k : getIdentifiers() ) {
 			System.out.println(k + ": " + new String(get(k)));
 		}
 	}
 	
 	public String toString() {
 		String res = "[";
-		for(String k : attributes.keySet() ) {
+		for(String k : getIdentifiers() ) {
 			res += k + ": " + new String(get(k)) + ", ";
 		}
 		res += "]";
@@ -102,22 +163,19 @@ public class Attributes implements Serializable {
 	 * @param expiry optional expiry date, if null, default is used.
 	 */
 	public Date getExpiryDate() {
-		byte[] metadata = get(META_DATA_FIELD);
-		long expiry = 0;
-
-		if (metadata.length == PREVIOUS_META_LENGTH) {
-			expiry = new BigInteger(metadata).longValue();
-		} else {
-			byte[] expiry_field = Arrays.copyOfRange(metadata,
-					EXPIRY_OFFSET, EXPIRY_OFFSET + EXPIRY_LENGTH);
-			expiry = new BigInteger(expiry_field).longValue();
-		}
-
 		Calendar expires = Calendar.getInstance();
-		expires.setTimeInMillis(expiry * EXPIRY_FACTOR);
+		expires.setTimeInMillis(getExpiryDay() * EXPIRY_FACTOR);
 		return expires.getTime();
 	}
 
+	/**
+	 * Get the expiry date of the credential containing these attributes, in
+	 * units of EXPIRY_FACTOR since the epoch.
+	 */
+	public int getExpiryDay() {
+		return getExpiryDay(get(META_DATA_FIELD));
+	}
+
 	/**
 	 * Set the expiry meta-field. This field is mandatory,
 	 * if no Date is specified (i.e. expiry == null) then the default expiry time
@@ -135,7 +193,7 @@ public class Attributes implements Serializable {
 
 		byte[] expiry_field = BigInteger.valueOf(
 				expires.getTimeInMillis() / EXPIRY_FACTOR).toByteArray();
-		byte[] metadata = attributes.get(META_DATA_FIELD);
+		byte[] metadata = get(META_DATA_FIELD);
 
 		// Zero the fields first
 		for (int i = 0; i < EXPIRY_LENGTH; i++) {
@@ -156,7 +214,7 @@ public class Attributes implements Serializable {
 	 * @param id
 	 */
 	public void setCredentialID(short id) {
-		byte[] metadata = attributes.get(META_DATA_FIELD);
+		byte[] metadata = get(META_DATA_FIELD);
 		metadata[CRED_ID_OFFSET] = (byte) (id >> 8);
 		metadata[CRED_ID_OFFSET + 1] = (byte) (id & 0xff);
 		add("metadata", metadata);
@@ -166,14 +224,7 @@ public class Attributes implements Serializable {
 	 * Gets the credential id meta-field.
 	 */
 	public short getCredentialID() {
-		byte[] metadata = attributes.get(META_DATA_FIELD);
-		if (metadata.length > PREVIOUS_META_LENGTH) {
-			return (short) (((metadata[CRED_ID_OFFSET] & 0xff) << 8) |
-					(metadata[CRED_ID_OFFSET + 1] & 0xff));
-		} else {
-			// Not available in old credentials
-			return 0;
-		}
+		return getCredentialID(get(META_DATA_FIELD));
 	}
 
 	/**
@@ -182,7 +233,7 @@ public class Attributes implements Serializable {
 	 * @return validity
 	 */
 	public boolean isValidOn(Date date) {
-		return date.before(getExpiryDate());
+		return date.getTime() < getExpiryDay() * EXPIRY_FACTOR;
 	}
 
 	/**
@@ -190,6 +241,119 @@ public class Attributes implements Serializable {
 	 * @return validity
 	 */
 	public boolean isValid() {
-		return isValidOn(Calendar.getInstance().getTime());
+		return isValid(ExpiryClock.SYSTEM);
+	}
+
+	/**
+	 * Test whether the credential containing these attributes is still valid
+	 * according to the given clock.
+	 * @return validity
+	 */
+	public boolean isValid(ExpiryClock clock) {
+		return isValidOn(get(META_DATA_FIELD), clock.currentDay());
+	}
+
+	/*
+	 * The methods below work directly on the packed metadata field, as
+	 * returned by get(META_DATA_FIELD), so that the metadata of many
+	 * credentials can be inspected without allocating anything. Both the
+	 * pre 0.8 layout (only the expiry date) and the current layout are
+	 * supported.
+	 */
+
+	/**
+	 * Gets the version of the metadata layout.
+	 * @param metadata the packed metadata field.
+	 * @return the version, or 0 for pre 0.8 credentials.
+	 */
+	public static int getVersion(byte[] metadata) {
+		return getVersion(metadata, 0, metadata.length);
+	}
+
+	/**
+	 * Gets the version of the metadata layout.
+	 * @param data buffer containing the packed metadata field.
+	 * @param offset of the metadata field in data.
+	 * @param length of the metadata field.
+	 * @return the version, or 0 for pre 0.8 credentials.
+	 */
+	public static int getVersion(byte[] data, int offset, int length) {
+		if (length == PREVIOUS_META_LENGTH) {
+			return 0;
+		}
+		return data[offset + VERSION_OFFSET] & 0xff;
+	}
+
+	/**
+	 * Gets the expiry date from the metadata field, in units of EXPIRY_FACTOR
+	 * since the epoch.
+	 * @param metadata the packed metadata field.
+	 */
+	public static int getExpiryDay(byte[] metadata) {
+		return getExpiryDay(metadata, 0, metadata.length);
+	}
+
+	/**
+	 * Gets the expiry date from the metadata field, in units of EXPIRY_FACTOR
+	 * since the epoch.
+	 * @param data buffer containing the packed metadata field.
+	 * @param offset of the metadata field in data.
+	 * @param length of the metadata field.
+	 */
+	public static int getExpiryDay(byte[] data, int offset, int length) {
+		if (length == PREVIOUS_META_LENGTH) {
+			return decodeSigned(data, offset, PREVIOUS_META_LENGTH);
+		} else {
+			return decodeSigned(data, offset + EXPIRY_OFFSET, EXPIRY_LENGTH);
+		}
+	}
+
+	/**
+	 * Gets the credential id from the metadata field.
+	 * @param metadata the packed metadata field.
+	 * @return the credential id, or 0 for pre 0.8 credentials.
+	 */
+	public static short getCredentialID(byte[] metadata) {
+		return getCredentialID(metadata, 0, metadata.length);
+	}
+
+	/**
+	 * Gets the credential id from the metadata field.
+	 * @param data buffer containing the packed metadata field.
+	 * @param offset of the metadata field in data.
+	 * @param length of the metadata field.
+	 * @return the credential id, or 0 for pre 0.8 credentials.
+	 */
+	public static short getCredentialID(byte[] data, int offset, int length) {
+		if (length > PREVIOUS_META_LENGTH) {
+			return (short) (((data[offset + CRED_ID_OFFSET] & 0xff) << 8) |
+					(data[offset + CRED_ID_OFFSET + 1] & 0xff));
+		} else {
+			// Not available in old credentials
+			return 0;
+		}
+	}
+
+	/**
+	 * Test whether the credential with the given metadata field is still
+	 * valid on the given day.
+	 * @param metadata the packed metadata field.
+	 * @param day in units of EXPIRY_FACTOR since the epoch.
+	 * @return validity
+	 */
+	public static boolean isValidOn(byte[] metadata, long day) {
+		return day < getExpiryDay(metadata);
+	}
+
+	/**
+	 * Decodes a big-endian two's complement number, like
+	 * <code>new BigInteger(bytes).intValue()</code> would.
+	 */
+	private static int decodeSigned(byte[] data, int offset, int length) {
+		int value = data[offset];
+		for (int i = 1; i < length; i++) {
+			value = (value << 8) | (data[offset + i] & 0xff);
+		}
+		return value;
 	}
 }
@@ -0,0 +1,337 @@
+/**
+ * AttributesCodec.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.irmacard.credentials.info.AttributeDescription;
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.DescriptionStore;
+import org.irmacard.credentials.info.InfoException;
+
+/**
+ * Compact binary encoding of Attributes. Instead of the attribute names, the
+ * encoding refers to the credential description, which defines the order of
+ * the attributes. The encoding consists of:
+ * <ul>
+ * <li>the id of the credential (2 bytes),</li>
+ * <li>a bitmap indicating which values are present; the first bit is the
+ *     metadata field, the following bits are the attributes in description
+ *     order,</li>
+ * <li>the present values in the same order, each prefixed with its length
+ *     (BER encoded).</li>
+ * </ul>
+ * Absent values are common, since a verification only returns the disclosed
+ * attributes.
+ */
+public class AttributesCodec {
+	private AttributesCodec() {
+	}
+
+	/**
+	 * Compute the number of bytes needed to encode the attributes.
+	 * 
+	 * @param attributes to encode.
+	 * @param description of the credential containing the attributes.
+	 * @return the encoded length.
+	 * @throws CredentialsException if the attributes do not match the description.
+	 */
+	public static int getEncodedLength(Attributes attributes,
+			CredentialDescription description) throws CredentialsException {
+		List<AttributeDescription> attrs = description.getAttributes();
+		checkIdentifiers(attributes, attrs);
+
+		int length = 2 + getBitmapLength(attrs.size());
+		byte[] metadata = attributes.get(Attributes.META_DATA_FIELD);
+		if (metadata != null) {
+			length += getEncodedLength(metadata.length);
+		}
+		for (AttributeDescription attr : attrs) {
+			byte[] value = attributes.get(attr.getName());
+			if (value != null) {
+				length += getEncodedLength(value.length);
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Encode the attributes into the buffer, starting at its current position.
+	 * On return the position is just after the encoding.
+	 * 
+	 * @param attributes to encode.
+	 * @param description of the credential containing the attributes.
+	 * @param out the buffer to write to.
+	 * @throws CredentialsException if the attributes do not match the description.
+	 * @throws java.nio.BufferOverflowException if the buffer is too small, see
+	 *         {@link #getEncodedLength(Attributes, CredentialDescription)}.
+	 */
+	public static void encode(Attributes attributes, CredentialDescription description,
+			ByteBuffer out) throws CredentialsException {
+		List<AttributeDescription> attrs = description.getAttributes();
+		checkIdentifiers(attributes, attrs);
+
+		out.putShort(description.getId());
+
+		// Bitmap of present values
+		byte[] metadata = attributes.get(Attributes.META_DATA_FIELD);
+		int bits = metadata != null ? 1 : 0;
+		int bit = 1;
+		for (AttributeDescription attr : attrs) {
+			if (bit == 8) {
+				out.put((byte) bits);
+				bits = 0;
+				bit = 0;
+			}
+			if (attributes.get(attr.getName()) != null) {
+				bits |= 1 << bit;
+			}
+			bit++;
+		}
+		out.put((byte) bits);
+
+		// Values
+		if (metadata != null) {
+			putValue(out, metadata);
+		}
+		for (AttributeDescription attr : attrs) {
+			byte[] value = attributes.get(attr.getName());
+			if (value != null) {
+				putValue(out, value);
+			}
+		}
+	}
+
+	/**
+	 * Decode attributes from the buffer, starting at its current position. The
+	 * credential description is looked up in the DescriptionStore. On return
+	 * the position is just after the encoding.
+	 * 
+	 * @param in the buffer to read from.
+	 * @return the decoded attributes.
+	 * @throws CredentialsException if the encoding is malformed or refers to
+	 *         an unknown credential.
+	 */
+	public static Attributes decode(ByteBuffer in) throws CredentialsException {
+		short id = peekCredentialID(in);
+		CredentialDescription description;
+		try {
+			description = DescriptionStore.getInstance().getCredentialDescription(id);
+		} catch (InfoException e) {
+			throw new CredentialsException("Cannot load credential description", e);
+		}
+		if (description == null) {
+			throw new CredentialsException("Unknown credential id " + id);
+		}
+		return decode(in, description);
+	}
+
+	/**
+	 * Decode attributes from the buffer, starting at its current position. On
+	 * return the position is just after the encoding.
+	 * 
+	 * @param in the buffer to read from.
+	 * @param description of the encoded credential.
+	 * @return the decoded attributes.
+	 * @throws CredentialsException if the encoding is malformed or does not
+	 *         refer to the given credential.
+	 */
+	public static Attributes decode(ByteBuffer in, CredentialDescription description)
+			throws CredentialsException {
+		try {
+			short id = in.getShort();
+			if (id != description.getId()) {
+				throw new CredentialsException("Encoding is for credential " + id
+						+ ", expected " + description.getId());
+			}
+
+			List<AttributeDescription> attrs = description.getAttributes();
+			int bitmapOffset = in.position();
+			in.position(bitmapOffset + getBitmapLength(attrs.size()));
+
+			Attributes attributes = new Attributes();
+			if (isPresent(in, bitmapOffset, 0)) {
+				attributes.add(Attributes.META_DATA_FIELD, getValue(in));
+			}
+			for (int i = 0; i < attrs.size(); i++) {
+				if (isPresent(in, bitmapOffset, i + 1)) {
+					attributes.add(attrs.get(i).getName(), getValue(in));
+				}
+			}
+			return attributes;
+		} catch (BufferUnderflowException e) {
+			throw new CredentialsException("Truncated attribute encoding", e);
+		} catch (IllegalArgumentException e) {
+			throw new CredentialsException("Malformed attribute encoding", e);
+		}
+	}
+
+	/**
+	 * Decode attributes from a heap buffer without copying the values: the
+	 * result is a view whose values are slices of the buffer's backing array.
+	 * On return the position is just after the encoding.
+	 * 
+	 * @param in the buffer to read from, must be backed by an array.
+	 * @param description of the encoded credential.
+	 * @return a view on the decoded attributes.
+	 * @throws CredentialsException if the encoding is malformed or does not
+	 *         refer to the given credential.
+	 */
+	public static AttributesView decodeView(ByteBuffer in, CredentialDescription description)
+			throws CredentialsException {
+		if (!in.hasArray()) {
+			throw new IllegalArgumentException("Buffer is not backed by an array");
+		}
+		try {
+			short id = in.getShort();
+			if (id != description.getId()) {
+				throw new CredentialsException("Encoding is for credential " + id
+						+ ", expected " + description.getId());
+			}
+
+			List<AttributeDescription> attrs = description.getAttributes();
+			int bitmapOffset = in.position();
+			in.position(bitmapOffset + getBitmapLength(attrs.size()));
+
+			AttributesView attributes = new AttributesView(in.array(), attrs.size() + 1);
+			if (isPresent(in, bitmapOffset, 0)) {
+				int length = getLength(in);
+				attributes.add(Attributes.META_DATA_FIELD, in.arrayOffset() + in.position(), length);
+				in.position(in.position() + length);
+			}
+			for (int i = 0; i < attrs.size(); i++) {
+				if (isPresent(in, bitmapOffset, i + 1)) {
+					int length = getLength(in);
+					attributes.add(attrs.get(i).getName(), in.arrayOffset() + in.position(), length);
+					in.position(in.position() + length);
+				}
+			}
+			return attributes;
+		} catch (BufferUnderflowException e) {
+			throw new CredentialsException("Truncated attribute encoding", e);
+		} catch (IllegalArgumentException e) {
+			throw new CredentialsException("Malformed attribute encoding", e);
+		}
+	}
+
+	/**
+	 * Get the id of the credential the encoding at the current position of
+	 * the buffer refers to, without changing the position.
+	 * 
+	 * @param in the buffer to read from.
+	 * @throws CredentialsException if the buffer is too short.
+	 */
+	public static short peekCredentialID(ByteBuffer in) throws CredentialsException {
+		if (in.remaining() < 2) {
+			throw new CredentialsException("Truncated attribute encoding");
+		}
+		return in.getShort(in.position());
+	}
+
+	private static void checkIdentifiers(Attributes attributes,
+			List<AttributeDescription> attrs) throws CredentialsException {
+		for (String id : attributes.getIdentifiers()) {
+			if (id.equals(Attributes.META_DATA_FIELD)) {
+				continue;
+			}
+			boolean found = false;
+			for (AttributeDescription attr : attrs) {
+				if (attr.getName().equals(id)) {
+					found = true;
+					break;
+				}
+			}
+			if (!found) {
+				throw new CredentialsException("Attribute " + id
+						+ " is not part of the credential description");
+			}
+		}
+	}
+
+	private static int getBitmapLength(int attributeCount) {
+		return (attributeCount + 1 + 7) / 8;
+	}
+
+	private static boolean isPresent(ByteBuffer in, int bitmapOffset, int index) {
+		return (in.get(bitmapOffset + index / 8) & (1 << (index % 8))) != 0;
+	}
+
+	private static int getEncodedLength(int length) {
+		if (length < 0x80) {
+			return 1 + length;
+		} else if (length < 0x100) {
+			return 2 + length;
+		} else if (length < 0x10000) {
+			return 3 + length;
+		} else {
+			return 4 + length;
+		}
+	}
+
+	private static void putValue(ByteBuffer out, byte[] value) {
+		int length = value.length;
+		if (length < 0x80) {
+			out.put((byte) length);
+		} else if (length < 0x100) {
+			out.put((byte) 0x81);
+			out.put((byte) length);
+		} else if (length < 0x10000) {
+			out.put((byte) 0x82);
+			out.putShort((short) length);
+		} else if (length < 0x1000000) {
+			out.put((byte) 0x83);
+			out.put((byte) (length >> 16));
+			out.putShort((short) length);
+		} else {
+			throw new IllegalArgumentException("Attribute value too long");
+		}
+		out.put(value);
+	}
+
+	private static byte[] getValue(ByteBuffer in) {
+		byte[] value = new byte[getLength(in)];
+		in.get(value);
+		return value;
+	}
+
+	/**
+	 * Read the length prefix of a value, and check that the value fits in
+	 * the remainder of the buffer.
+	 */
+	private static int getLength(ByteBuffer in) {
+		int length = in.get() & 0xff;
+		if ((length & 0x80) != 0) {
+			int lengthBytesCount = length & 0x7f;
+			if (lengthBytesCount == 0 || lengthBytesCount > 3) {
+				throw new IllegalArgumentException("Invalid length encoding");
+			}
+			length = 0;
+			for (int i = 0; i < lengthBytesCount; i++) {
+				length = (length << 8) | (in.get() & 0xff);
+			}
+		}
+		if (length > in.remaining()) {
+			throw new BufferUnderflowException();
+		}
+		return length;
+	}
+}
@@ -0,0 +1,251 @@
+/**
+ * AttributesView.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Attributes whose values are slices of a shared buffer, typically the
+ * response of the card. Adding a value does not copy it, instead the offset
+ * and length of the value within the buffer are recorded. A copy is only
+ * made when a caller asks for an owned value using {@link #get(String)}; use
+ * {@link #getBuffer(String)}, {@link #getOffset(String)} and
+ * {@link #getLength(String)} to access the value in place.
+ * 
+ * The view does not protect the underlying buffer, so the buffer should not
+ * be modified while the view is in use. When serialized, the view is
+ * replaced by a plain Attributes object holding copies of the values.
+ */
+public class AttributesView extends Attributes {
+	private static final long serialVersionUID = 1L;
+
+	private static final int DEFAULT_CAPACITY = 8;
+
+	private final byte[] buffer;
+
+	private String[] ids;
+	private byte[][] buffers;
+	private int[] offsets;
+	private int[] lengths;
+	private int count;
+
+	/**
+	 * Create an empty view over the given buffer. Note that, unlike a new
+	 * Attributes object, the view does not contain a meta-data field until
+	 * it is added.
+	 * @param buffer shared buffer containing the values.
+	 */
+	public AttributesView(byte[] buffer) {
+		this(buffer, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create an empty view over the given buffer, with room for the given
+	 * number of attributes.
+	 * @param buffer shared buffer containing the values.
+	 * @param capacity expected number of attributes, including the meta-data.
+	 */
+	public AttributesView(byte[] buffer, int capacity) {
+		super(null);
+		this.buffer = buffer;
+		ids = new String[capacity];
+		buffers = new byte[capacity][];
+		offsets = new int[capacity];
+		lengths = new int[capacity];
+	}
+
+	/**
+	 * Add an attribute whose value is a slice of the shared buffer.
+	 * @param id of the attribute.
+	 * @param offset of the value in the shared buffer.
+	 * @param length of the value.
+	 */
+	public void add(String id, int offset, int length) {
+		add(id, buffer, offset, length);
+	}
+
+	/**
+	 * Add an attribute whose value is a slice of the given buffer.
+	 * @param id of the attribute.
+	 * @param data buffer containing the value.
+	 * @param offset of the value in data.
+	 * @param length of the value.
+	 */
+	public void add(String id, byte[] data, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > data.length) {
+			throw new IndexOutOfBoundsException("Slice [" + offset + ", "
+					+ (offset + length) + ") outside buffer of length " + data.length);
+		}
+
+		int i = indexOf(id);
+		if (i < 0) {
+			if (count == ids.length) {
+				grow();
+			}
+			i = count++;
+			ids[i] = id;
+		}
+		buffers[i] = data;
+		offsets[i] = offset;
+		lengths[i] = length;
+		invalidate(id);
+	}
+
+	@Override
+	public void add(String id, byte[] value) {
+		add(id, value, 0, value.length);
+	}
+
+	/**
+	 * Get an owned copy of the value of an attribute.
+	 * @return a copy of the value, or null if there is no such attribute.
+	 */
+	@Override
+	public byte[] get(String id) {
+		int i = indexOf(id);
+		if (i < 0) {
+			return null;
+		}
+		return Arrays.copyOfRange(buffers[i], offsets[i], offsets[i] + lengths[i]);
+	}
+
+	@Override
+	public Set<String> getIdentifiers() {
+		Set<String> result = new HashSet<String>();
+		for (int i = 0; i < count; i++) {
+			result.add(ids[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * Test whether the view contains the attribute.
+	 */
+	public boolean contains(String id) {
+		return indexOf(id) >= 0;
+	}
+
+	/**
+	 * Get the buffer containing the value of an attribute. This is the
+	 * shared buffer, unless the value was added from a different array.
+	 */
+	public byte[] getBuffer(String id) {
+		return buffers[checkedIndexOf(id)];
+	}
+
+	/**
+	 * Get the offset of the value of an attribute in its buffer.
+	 */
+	public int getOffset(String id) {
+		return offsets[checkedIndexOf(id)];
+	}
+
+	/**
+	 * Get the length of the value of an attribute.
+	 */
+	public int getLength(String id) {
+		return lengths[checkedIndexOf(id)];
+	}
+
+	/**
+	 * Copy the value of an attribute into the given array.
+	 * @param id of the attribute.
+	 * @param dst array to copy into.
+	 * @param dstOffset offset in dst to copy to.
+	 * @return the number of bytes copied.
+	 */
+	public int copyTo(String id, byte[] dst, int dstOffset) {
+		int i = checkedIndexOf(id);
+		System.arraycopy(buffers[i], offsets[i], dst, dstOffset, lengths[i]);
+		return lengths[i];
+	}
+
+	@Override
+	public int getExpiryDay() {
+		int i = checkedIndexOf(META_DATA_FIELD);
+		return getExpiryDay(buffers[i], offsets[i], lengths[i]);
+	}
+
+	@Override
+	public short getCredentialID() {
+		int i = checkedIndexOf(META_DATA_FIELD);
+		return getCredentialID(buffers[i], offsets[i], lengths[i]);
+	}
+
+	@Override
+	public boolean isValid(ExpiryClock clock) {
+		return clock.currentDay() < getExpiryDay();
+	}
+
+	/**
+	 * Create plain Attributes holding copies of the values in this view.
+	 */
+	public Attributes toAttributes() {
+		Attributes result = new Attributes();
+		for (int i = 0; i < count; i++) {
+			result.add(ids[i], Arrays.copyOfRange(buffers[i], offsets[i],
+					offsets[i] + lengths[i]));
+		}
+		return result;
+	}
+
+	@Override
+	public ImmutableAttributes freeze() {
+		Map<String, byte[]> values = new HashMap<String, byte[]>();
+		for (int i = 0; i < count; i++) {
+			values.put(ids[i], Arrays.copyOfRange(buffers[i], offsets[i],
+					offsets[i] + lengths[i]));
+		}
+		return new ImmutableAttributes(values);
+	}
+
+	private Object writeReplace() {
+		return toAttributes();
+	}
+
+	private int indexOf(String id) {
+		for (int i = 0; i < count; i++) {
+			if (ids[i] == id || ids[i].equals(id)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int checkedIndexOf(String id) {
+		int i = indexOf(id);
+		if (i < 0) {
+			throw new IllegalArgumentException("No such attribute: " + id);
+		}
+		return i;
+	}
+
+	private void grow() {
+		int capacity = Math.max(ids.length * 2, DEFAULT_CAPACITY);
+		ids = Arrays.copyOf(ids, capacity);
+		buffers = Arrays.copyOf(buffers, capacity);
+		offsets = Arrays.copyOf(offsets, capacity);
+		lengths = Arrays.copyOf(lengths, capacity);
+	}
+}
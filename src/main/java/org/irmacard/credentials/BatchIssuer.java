@@ -0,0 +1,276 @@
+/**
+ * BatchIssuer.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import net.sf.scuba.smartcards.CardService;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.ProtocolCommand;
+import net.sf.scuba.smartcards.ProtocolCommands;
+import net.sf.scuba.smartcards.ProtocolResponse;
+import net.sf.scuba.smartcards.ProtocolResponses;
+
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.keys.PrivateKey;
+
+/**
+ * Issues several credentials to a card in a single session, so that card
+ * selection, authentication and PIN verification are only done once, by the
+ * caller, before the batch is started.
+ * 
+ * The card holds the state of only one issuance at a time, so the
+ * credentials are issued one after the other, and all rounds of a credential
+ * are sent to the card before the next credential is started. If the
+ * Credentials provider implements {@link PipelinedIssuance}, the host-side
+ * work is overlapped with the card: while the card processes the rounds of
+ * one credential, the issuance of the next credential is started and its
+ * first round is computed on the executor.
+ * 
+ * If the card fails, or an issuance fails after its first commands have been
+ * sent, the card is left in an unknown state and the rest of the batch is
+ * aborted. Without PipelinedIssuance it is unknown which commands were sent,
+ * so any failure aborts the rest of the batch.
+ */
+public class BatchIssuer {
+	private final Credentials credentials;
+	private final Executor executor;
+
+	/**
+	 * @param credentials the provider used for issuing.
+	 * @param executor to run the host-side computations on.
+	 */
+	public BatchIssuer(Credentials credentials, Executor executor) {
+		this.credentials = credentials;
+		this.executor = executor;
+	}
+
+	/**
+	 * Issue all items of the batch.
+	 * 
+	 * @param service to communicate with the card, on which the applet has
+	 *        been selected and the PIN has been verified. If the provider
+	 *        does not implement PipelinedIssuance it issues through its own
+	 *        card service, which must be this one.
+	 * @param items to issue.
+	 * @return the results, in the same order as the items.
+	 * @throws IllegalArgumentException if the provider uses a different card
+	 *         service.
+	 */
+	public List<Result> issue(CardService service, List<Item> items) {
+		if (credentials instanceof PipelinedIssuance) {
+			return issuePipelined((PipelinedIssuance) credentials, service, items);
+		}
+		if (credentials instanceof BaseCredentials
+				&& ((BaseCredentials) credentials).cs != service) {
+			throw new IllegalArgumentException(
+					"The credentials provider uses a different card service");
+		}
+
+		Result[] results = new Result[items.size()];
+		for (int i = 0; i < items.size(); i++) {
+			Item item = items.get(i);
+			try {
+				credentials.issue(item.getSpecification(), item.getPrivateKey(),
+						item.getValues(), item.getExpires());
+				results[i] = new Result(null);
+			} catch (CredentialsException e) {
+				// There is no telling how far the issuance got on the card
+				results[i] = new Result(e);
+				abort(results, i + 1, e);
+				break;
+			}
+		}
+		return Arrays.asList(results);
+	}
+
+	private List<Result> issuePipelined(PipelinedIssuance issuance,
+			CardService service, List<Item> items) {
+		int n = items.size();
+		Result[] results = new Result[n];
+
+		CompletableFuture<Started> next = n > 0 ? start(issuance, items.get(0)) : null;
+		for (int i = 0; i < n; i++) {
+			CompletableFuture<Started> current = next;
+			// Prepare the next credential while this one is on the card
+			next = i + 1 < n ? start(issuance, items.get(i + 1)) : null;
+
+			Started started;
+			try {
+				started = current.get();
+			} catch (ExecutionException e) {
+				// Nothing was sent to the card yet
+				results[i] = new Result(toCredentialsException(e.getCause()));
+				continue;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				results[i] = new Result(new CredentialsException("Interrupted", e));
+				abort(results, i + 1, results[i].getFailure());
+				break;
+			}
+
+			try {
+				// Keep the rounds of this credential together on the card
+				ProtocolCommands commands = started.commands;
+				while (commands != null) {
+					commands = started.session.nextCommands(transmit(service, commands));
+				}
+				results[i] = new Result(null);
+			} catch (CardServiceException e) {
+				results[i] = new Result(new CredentialsException("Card communication failed", e));
+			} catch (CredentialsException e) {
+				results[i] = new Result(e);
+			}
+
+			if (!results[i].isIssued()) {
+				// The card may be left halfway through the issuance
+				abort(results, i + 1, results[i].getFailure());
+				break;
+			}
+		}
+
+		if (next != null) {
+			next.cancel(false);
+		}
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Start the issuance of an item and compute its first round on the
+	 * executor.
+	 */
+	private CompletableFuture<Started> start(final PipelinedIssuance issuance,
+			final Item item) {
+		return AsyncCredentialsAdapter.submit(new Callable<Started>() {
+			public Started call() throws CredentialsException {
+				IssuanceSession session = issuance.startIssuance(item.getSpecification(),
+						item.getPrivateKey(), item.getValues(), item.getExpires());
+				return new Started(session, session.nextCommands(null));
+			}
+		}, executor);
+	}
+
+	/**
+	 * Fail the remaining items of the batch.
+	 */
+	private static void abort(Result[] results, int from, CredentialsException cause) {
+		for (int i = from; i < results.length; i++) {
+			results[i] = new Result(new CredentialsException(
+					"Batch aborted after an earlier failure", cause));
+		}
+	}
+
+	private static ProtocolResponses transmit(CardService service, ProtocolCommands commands)
+			throws CardServiceException {
+		ProtocolResponses responses = new ProtocolResponses();
+		for (ProtocolCommand c : commands) {
+			responses.put(c.getKey(), new ProtocolResponse(c.getKey(), service.transmit(c.getAPDU())));
+		}
+		return responses;
+	}
+
+	private static CredentialsException toCredentialsException(Throwable e) {
+		if (e instanceof CredentialsException) {
+			return (CredentialsException) e;
+		}
+		return new CredentialsException("Issuance failed", e);
+	}
+
+	/**
+	 * An issuance that has been started, with the commands of its first round.
+	 */
+	private static class Started {
+		final IssuanceSession session;
+		final ProtocolCommands commands;
+
+		Started(IssuanceSession session, ProtocolCommands commands) {
+			this.session = session;
+			this.commands = commands;
+		}
+	}
+
+	/**
+	 * A credential to issue.
+	 */
+	public static class Item {
+		private final CredentialDescription specification;
+		private final PrivateKey pkey;
+		private final Attributes values;
+		private final Date expires;
+
+		/**
+		 * @see Credentials#issue(CredentialDescription, PrivateKey, Attributes, Date)
+		 */
+		public Item(CredentialDescription specification, PrivateKey pkey,
+				Attributes values, Date expires) {
+			this.specification = specification;
+			this.pkey = pkey;
+			this.values = values;
+			this.expires = expires;
+		}
+
+		public CredentialDescription getSpecification() {
+			return specification;
+		}
+
+		public PrivateKey getPrivateKey() {
+			return pkey;
+		}
+
+		public Attributes getValues() {
+			return values;
+		}
+
+		public Date getExpires() {
+			return expires;
+		}
+	}
+
+	/**
+	 * The outcome of issuing a single item.
+	 */
+	public static class Result {
+		private final CredentialsException failure;
+
+		Result(CredentialsException failure) {
+			this.failure = failure;
+		}
+
+		/**
+		 * @return whether the credential was issued.
+		 */
+		public boolean isIssued() {
+			return failure == null;
+		}
+
+		/**
+		 * @return the reason issuance failed, or null if it succeeded.
+		 */
+		public CredentialsException getFailure() {
+			return failure;
+		}
+	}
+}
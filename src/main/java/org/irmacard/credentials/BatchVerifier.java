@@ -0,0 +1,185 @@
+/**
+ * BatchVerifier.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import net.sf.scuba.smartcards.ProtocolResponses;
+
+import org.irmacard.credentials.info.VerificationDescription;
+
+/**
+ * Verifies many collected proof responses in parallel. The batch is split
+ * recursively over a work-stealing ForkJoinPool, so that all cores are kept
+ * busy even if some proofs take longer to check than others.
+ * 
+ * The Credentials object is shared by all workers, so its
+ * {@link Credentials#verifyProofResponses(VerificationDescription, BigInteger, ProtocolResponses)}
+ * must be safe to call from multiple threads at once.
+ */
+public class BatchVerifier {
+	private final Credentials credentials;
+	private final ForkJoinPool pool;
+
+	/**
+	 * Create a batch verifier that uses the common ForkJoinPool.
+	 * @param credentials used to verify the proofs.
+	 */
+	public BatchVerifier(Credentials credentials) {
+		this(credentials, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Create a batch verifier.
+	 * @param credentials used to verify the proofs.
+	 * @param pool to run the verifications on.
+	 */
+	public BatchVerifier(Credentials credentials, ForkJoinPool pool) {
+		this.credentials = credentials;
+		this.pool = pool;
+	}
+
+	/**
+	 * Verify all items of the batch.
+	 * 
+	 * @param items to verify.
+	 * @return the results, in the same order as the items.
+	 */
+	public List<Result> verify(List<Item> items) {
+		Item[] input = items.toArray(new Item[items.size()]);
+		Result[] output = new Result[input.length];
+		pool.invoke(new VerifyTask(input, output, 0, input.length));
+		return Arrays.asList(output);
+	}
+
+	private Result verify(Item item) {
+		try {
+			Attributes attributes = credentials.verifyProofResponses(
+					item.getSpecification(), item.getNonce(), item.getResponses());
+			return new Result(attributes, null);
+		} catch (CredentialsException e) {
+			return new Result(null, e);
+		} catch (RuntimeException e) {
+			return new Result(null, new CredentialsException("Verification failed", e));
+		}
+	}
+
+	private class VerifyTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Item[] input;
+		private final Result[] output;
+		private final int from, to;
+
+		VerifyTask(Item[] input, Result[] output, int from, int to) {
+			this.input = input;
+			this.output = output;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			// Checking a single proof is expensive enough to be a task on its own
+			if (to - from == 1) {
+				output[from] = verify(input[from]);
+			} else if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new VerifyTask(input, output, from, mid),
+						new VerifyTask(input, output, mid, to));
+			}
+		}
+	}
+
+	/**
+	 * The proof responses of a single session, with the state needed to
+	 * check them.
+	 */
+	public static class Item {
+		private final VerificationDescription specification;
+		private final BigInteger nonce;
+		private final ProtocolResponses responses;
+
+		/**
+		 * @param specification used when requesting the proof.
+		 * @param nonce used when requesting the proof.
+		 * @param responses of the card to the proof requests.
+		 */
+		public Item(VerificationDescription specification, BigInteger nonce,
+				ProtocolResponses responses) {
+			this.specification = specification;
+			this.nonce = nonce;
+			this.responses = responses;
+		}
+
+		public VerificationDescription getSpecification() {
+			return specification;
+		}
+
+		public BigInteger getNonce() {
+			return nonce;
+		}
+
+		public ProtocolResponses getResponses() {
+			return responses;
+		}
+	}
+
+	/**
+	 * The outcome of verifying a single item: either the disclosed
+	 * attributes, or the reason the verification failed.
+	 */
+	public static class Result {
+		private final Attributes attributes;
+		private final CredentialsException failure;
+
+		Result(Attributes attributes, CredentialsException failure) {
+			this.attributes = attributes;
+			this.failure = failure;
+		}
+
+		/**
+		 * @return whether the proof was verified successfully.
+		 */
+		public boolean isVerified() {
+			return failure == null && attributes != null;
+		}
+
+		/**
+		 * @return the disclosed attributes, or null if verification failed.
+		 */
+		public Attributes getAttributes() {
+			return attributes;
+		}
+
+		/**
+		 * @return the exception thrown during verification, or null if none
+		 *         was thrown. Note that a proof may also be rejected without
+		 *         an exception, see isVerified().
+		 */
+		public CredentialsException getFailure() {
+			return failure;
+		}
+	}
+}
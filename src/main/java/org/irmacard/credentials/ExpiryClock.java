@@ -0,0 +1,45 @@
+/**
+ * ExpiryClock.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+/**
+ * A coarse clock that only tells the current day, at the granularity of the
+ * expiry meta-field (see {@link Attributes#EXPIRY_FACTOR}). Expiry checks only
+ * need this precision, and it allows sweeps to check many credentials against
+ * a single fixed day.
+ */
+public interface ExpiryClock {
+
+	/**
+	 * Clock backed by the system time.
+	 */
+	public static final ExpiryClock SYSTEM = new ExpiryClock() {
+		public long currentDay() {
+			return System.currentTimeMillis() / Attributes.EXPIRY_FACTOR;
+		}
+	};
+
+	/**
+	 * Get the current day.
+	 * 
+	 * @return the number of EXPIRY_FACTOR periods since the epoch.
+	 */
+	public long currentDay();
+}
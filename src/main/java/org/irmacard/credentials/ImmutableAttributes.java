@@ -0,0 +1,204 @@
+/**
+ * ImmutableAttributes.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An immutable snapshot of Attributes, obtained using
+ * {@link Attributes#freeze()}. The values are copied once when the snapshot
+ * is taken, and are never handed out directly afterwards: {@link #get(String)}
+ * returns a copy, and {@link #getReadOnly(String)} gives read-only access
+ * without copying. All modifying methods throw an
+ * UnsupportedOperationException.
+ * 
+ * Since all state is final and never modified, instances can be shared
+ * between threads and cached without further copying.
+ */
+public final class ImmutableAttributes extends Attributes {
+	private static final long serialVersionUID = 1L;
+
+	private final Map<String, byte[]> values;
+
+	/**
+	 * Cached number encodings of the values, created lazily. Concurrent
+	 * initialization may at worst cause some numbers to be computed twice.
+	 */
+	private transient volatile Map<String, BigInteger> numbers;
+
+	/**
+	 * Create a snapshot of the given attributes.
+	 * @param attributes to copy.
+	 */
+	ImmutableAttributes(Attributes attributes) {
+		this(copyValues(attributes));
+	}
+
+	/**
+	 * Create a snapshot that takes ownership of the given values, which should
+	 * not be referenced anywhere else.
+	 */
+	ImmutableAttributes(Map<String, byte[]> values) {
+		super(null);
+		this.values = Collections.unmodifiableMap(values);
+	}
+
+	private static Map<String, byte[]> copyValues(Attributes attributes) {
+		Map<String, byte[]> values = new HashMap<String, byte[]>();
+		for (String id : attributes.getIdentifiers()) {
+			byte[] value = attributes.get(id);
+			values.put(id, value == null ? null : value.clone());
+		}
+		return values;
+	}
+
+	/**
+	 * Not supported, the snapshot cannot be modified.
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override
+	public void add(String id, byte[] value) {
+		throw new UnsupportedOperationException("Attributes are immutable");
+	}
+
+	/**
+	 * Not supported, the snapshot cannot be modified.
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override
+	public void setExpireDate(Date expiry) {
+		throw new UnsupportedOperationException("Attributes are immutable");
+	}
+
+	/**
+	 * Not supported, the snapshot cannot be modified.
+	 * @throws UnsupportedOperationException always
+	 */
+	@Override
+	public void setCredentialID(short id) {
+		throw new UnsupportedOperationException("Attributes are immutable");
+	}
+
+	/**
+	 * Get a copy of the value of an attribute. Use
+	 * {@link #getReadOnly(String)} to avoid the copy.
+	 * @return a copy of the value, or null if there is no such attribute.
+	 */
+	@Override
+	public byte[] get(String id) {
+		byte[] value = values.get(id);
+		return value == null ? null : value.clone();
+	}
+
+	/**
+	 * Get read-only access to the value of an attribute, without copying it.
+	 * @return a read-only buffer containing the value, or null if there is no
+	 *         such attribute.
+	 */
+	public ByteBuffer getReadOnly(String id) {
+		byte[] value = values.get(id);
+		return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Get the length of the value of an attribute.
+	 * @return the length, or -1 if there is no such attribute.
+	 */
+	public int getLength(String id) {
+		byte[] value = values.get(id);
+		return value == null ? -1 : value.length;
+	}
+
+	/**
+	 * Copy the value of an attribute into the given array.
+	 * @param id of the attribute.
+	 * @param dst array to copy into.
+	 * @param dstOffset offset in dst to copy to.
+	 * @return the number of bytes copied.
+	 */
+	public int copyTo(String id, byte[] dst, int dstOffset) {
+		byte[] value = values.get(id);
+		if (value == null) {
+			throw new IllegalArgumentException("No such attribute: " + id);
+		}
+		System.arraycopy(value, 0, dst, dstOffset, value.length);
+		return value.length;
+	}
+
+	/**
+	 * Get the value of an attribute as a number. The numbers are cached in a
+	 * thread-safe way, so the snapshot can be used from multiple threads.
+	 * @see Attributes#getBigInteger(String)
+	 */
+	@Override
+	public BigInteger getBigInteger(String id) {
+		Map<String, BigInteger> cache = numbers;
+		if (cache == null) {
+			cache = new ConcurrentHashMap<String, BigInteger>();
+			numbers = cache;
+		}
+		BigInteger number = cache.get(id);
+		if (number == null) {
+			byte[] value = values.get(id);
+			if (value == null) {
+				return null;
+			}
+			number = new BigInteger(1, value);
+			cache.put(id, number);
+		}
+		return number;
+	}
+
+	@Override
+	public Set<String> getIdentifiers() {
+		return values.keySet();
+	}
+
+	@Override
+	public int getExpiryDay() {
+		return getExpiryDay(values.get(META_DATA_FIELD));
+	}
+
+	@Override
+	public short getCredentialID() {
+		return getCredentialID(values.get(META_DATA_FIELD));
+	}
+
+	@Override
+	public boolean isValid(ExpiryClock clock) {
+		return isValidOn(values.get(META_DATA_FIELD), clock.currentDay());
+	}
+
+	/**
+	 * The snapshot is already immutable.
+	 * @return this object.
+	 */
+	@Override
+	public ImmutableAttributes freeze() {
+		return this;
+	}
+}
@@ -0,0 +1,51 @@
+/**
+ * IssuanceSession.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+import net.sf.scuba.smartcards.ProtocolCommands;
+import net.sf.scuba.smartcards.ProtocolResponses;
+
+/**
+ * The issuance of a single credential, split into rounds of commands. This
+ * is a lower-level entry-point to the API, comparable to
+ * requestProofCommands and verifyProofResponses for verification, that
+ * separates the host-side computations from the communication with the card.
+ * 
+ * The card holds the state of only one issuance, so all rounds of a session
+ * must be sent to the card before the commands of another session are sent.
+ * Only the computations, such as starting the session and its first round,
+ * may overlap with another issuance on the card.
+ * 
+ * @see PipelinedIssuance
+ */
+public interface IssuanceSession {
+
+	/**
+	 * Compute the commands for the next round of the issuance protocol.
+	 * 
+	 * @param responses the responses of the card to the commands of the
+	 *        previous round, or null for the first round.
+	 * @return the commands to send to the card, or null if the issuance is
+	 *         complete.
+	 * @throws CredentialsException if the responses are invalid.
+	 */
+	public ProtocolCommands nextCommands(ProtocolResponses responses)
+			throws CredentialsException;
+}
@@ -0,0 +1,228 @@
+/**
+ * MetadataStore.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+import java.util.Arrays;
+
+/**
+ * Columnar storage for the metadata fields of a large number of credentials.
+ * Instead of keeping an Attributes object per credential, the version, expiry
+ * date and credential id are kept in primitive arrays, which are indexed by
+ * the position at which the metadata was added. The bulk queries are simple
+ * loops over these arrays, so that they can be vectorized by the JIT.
+ * 
+ * Both the pre 0.8 and the current metadata layout can be added. Credentials
+ * using the old layout have version 0 and credential id 0.
+ * 
+ * This class is not thread-safe.
+ */
+public class MetadataStore {
+	/**
+	 * Number of distinct credential ids, ids are treated as unsigned.
+	 */
+	public final static int CRED_ID_COUNT = 1 << 16;
+
+	private static final int DEFAULT_CAPACITY = 1024;
+
+	private byte[] versions;
+	private int[] expiryDays;
+	private short[] credentialIDs;
+	private int size;
+
+	public MetadataStore() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create a store with room for the given number of credentials. The store
+	 * grows when more are added.
+	 * @param capacity initial capacity
+	 */
+	public MetadataStore(int capacity) {
+		versions = new byte[capacity];
+		expiryDays = new int[capacity];
+		credentialIDs = new short[capacity];
+	}
+
+	/**
+	 * Add the metadata of a credential.
+	 * @param metadata the packed metadata field.
+	 * @return the index of the credential in this store.
+	 */
+	public int add(byte[] metadata) {
+		if (size == expiryDays.length) {
+			grow();
+		}
+		store(size, metadata);
+		return size++;
+	}
+
+	/**
+	 * Add the metadata of a credential.
+	 * @param attributes of the credential.
+	 * @return the index of the credential in this store.
+	 */
+	public int add(Attributes attributes) {
+		return add(attributes.get(Attributes.META_DATA_FIELD));
+	}
+
+	/**
+	 * Replace the metadata of the credential at the given index, for example
+	 * when it has been reissued.
+	 * @param index of the credential.
+	 * @param metadata the packed metadata field.
+	 */
+	public void set(int index, byte[] metadata) {
+		checkIndex(index);
+		store(index, metadata);
+	}
+
+	private void store(int index, byte[] metadata) {
+		versions[index] = (byte) Attributes.getVersion(metadata);
+		expiryDays[index] = Attributes.getExpiryDay(metadata);
+		credentialIDs[index] = Attributes.getCredentialID(metadata);
+	}
+
+	/**
+	 * @return the number of credentials in this store.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Remove all credentials, but keep the allocated capacity.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	public int getVersion(int index) {
+		checkIndex(index);
+		return versions[index] & 0xff;
+	}
+
+	/**
+	 * @return the expiry date, in units of EXPIRY_FACTOR since the epoch.
+	 */
+	public int getExpiryDay(int index) {
+		checkIndex(index);
+		return expiryDays[index];
+	}
+
+	public short getCredentialID(int index) {
+		checkIndex(index);
+		return credentialIDs[index];
+	}
+
+	/**
+	 * Test whether the credential at the given index is still valid on the
+	 * given day.
+	 */
+	public boolean isValidOn(int index, long day) {
+		return day < getExpiryDay(index);
+	}
+
+	/**
+	 * Count the credentials that expire before the given day, i.e. that are
+	 * no longer valid on that day.
+	 * @param day in units of EXPIRY_FACTOR since the epoch.
+	 */
+	public int countExpiringBefore(int day) {
+		int[] expiry = expiryDays;
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			count += expiry[i] <= day ? 1 : 0;
+		}
+		return count;
+	}
+
+	/**
+	 * Count the credentials with the given credential id that expire before
+	 * the given day.
+	 * @param day in units of EXPIRY_FACTOR since the epoch.
+	 * @param credentialID of the credentials to count.
+	 */
+	public int countExpiringBefore(int day, short credentialID) {
+		int[] expiry = expiryDays;
+		short[] ids = credentialIDs;
+		int count = 0;
+		for (int i = 0; i < size; i++) {
+			count += (expiry[i] <= day & ids[i] == credentialID) ? 1 : 0;
+		}
+		return count;
+	}
+
+	/**
+	 * Count, for every credential id, the credentials that expire before the
+	 * given day.
+	 * @param day in units of EXPIRY_FACTOR since the epoch.
+	 * @param counts array of length CRED_ID_COUNT, indexed by the unsigned
+	 *        credential id, to which the counts are added.
+	 */
+	public void countExpiringBeforePerCredential(int day, int[] counts) {
+		if (counts.length < CRED_ID_COUNT) {
+			throw new IllegalArgumentException("Counts should have room for "
+					+ CRED_ID_COUNT + " credential ids");
+		}
+		int[] expiry = expiryDays;
+		short[] ids = credentialIDs;
+		for (int i = 0; i < size; i++) {
+			counts[ids[i] & 0xffff] += expiry[i] <= day ? 1 : 0;
+		}
+	}
+
+	/**
+	 * List the credentials with the given credential id that expire before
+	 * the given day.
+	 * @param day in units of EXPIRY_FACTOR since the epoch.
+	 * @param credentialID of the credentials to list.
+	 * @param from index at which to start searching.
+	 * @param indices array to which the indices of the matching credentials
+	 *        are written.
+	 * @return the number of indices written. If this equals the length of
+	 *         indices there may be more matches, continue searching from the
+	 *         last index written plus one.
+	 */
+	public int listExpiringBefore(int day, short credentialID, int from, int[] indices) {
+		int[] expiry = expiryDays;
+		short[] ids = credentialIDs;
+		int n = 0;
+		for (int i = from; i < size && n < indices.length; i++) {
+			if (expiry[i] <= day && ids[i] == credentialID) {
+				indices[n++] = i;
+			}
+		}
+		return n;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+		}
+	}
+
+	private void grow() {
+		int capacity = Math.max(expiryDays.length * 2, DEFAULT_CAPACITY);
+		versions = Arrays.copyOf(versions, capacity);
+		expiryDays = Arrays.copyOf(expiryDays, capacity);
+		credentialIDs = Arrays.copyOf(credentialIDs, capacity);
+	}
+}
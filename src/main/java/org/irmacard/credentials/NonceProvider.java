@@ -0,0 +1,224 @@
+/**
+ * NonceProvider.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Provides random nonces for the proof protocols, generated ahead of time by
+ * background threads. The nonces are kept in a bounded pool, so that taking
+ * one is just a lock-free queue operation and the cost of drawing randomness
+ * (including the seeding of the random generators) is kept off the request
+ * threads. When the pool is depleted, nonces are generated on the calling
+ * thread instead; the number of times this happens is reported by
+ * {@link #getMisses()}.
+ * 
+ * Every thread, both the background threads and the callers, uses its own
+ * random generator, so that there is no contention on a shared SecureRandom.
+ */
+public class NonceProvider {
+	private static final ThreadLocal<SecureRandom> RANDOM = new ThreadLocal<SecureRandom>() {
+		@Override
+		protected SecureRandom initialValue() {
+			try {
+				return SecureRandom.getInstance("DRBG");
+			} catch (NoSuchAlgorithmException e) {
+				// Not available before Java 9
+				return new SecureRandom();
+			}
+		}
+	};
+
+	private final int bits;
+	private final int capacity;
+	private final ConcurrentLinkedQueue<BigInteger> pool =
+			new ConcurrentLinkedQueue<BigInteger>();
+	private final Semaphore free;
+	private final Thread[] workers;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/**
+	 * Create a nonce provider, and start filling the pool.
+	 * 
+	 * @param bits the length of the nonces, in bits.
+	 * @param capacity the maximum number of nonces kept in the pool.
+	 * @param threads the number of background threads filling the pool.
+	 */
+	public NonceProvider(int bits, int capacity, int threads) {
+		if (bits <= 0 || capacity <= 0 || threads <= 0) {
+			throw new IllegalArgumentException("Bits, capacity and threads should be positive");
+		}
+		this.bits = bits;
+		this.capacity = capacity;
+		this.free = new Semaphore(capacity);
+
+		workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				public void run() {
+					fill();
+				}
+			}, "NonceProvider-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+	}
+
+	private void fill() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				free.acquire();
+				pool.offer(generate());
+			}
+		} catch (InterruptedException e) {
+			// Shutting down
+		}
+	}
+
+	private BigInteger generate() {
+		return new BigInteger(bits, RANDOM.get());
+	}
+
+	/**
+	 * Get a fresh nonce, from the pool if possible.
+	 * 
+	 * @return a uniformly random nonce of the configured length.
+	 */
+	public BigInteger next() {
+		BigInteger nonce = pool.poll();
+		if (nonce != null) {
+			free.release();
+			hits.increment();
+			return nonce;
+		}
+		misses.increment();
+		return generate();
+	}
+
+	/**
+	 * Stop the background threads. Nonces can still be requested afterwards,
+	 * but will be generated on the calling thread once the pool is empty.
+	 */
+	public void shutdown() {
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+	}
+
+	/**
+	 * @return the length of the nonces, in bits.
+	 */
+	public int getBits() {
+		return bits;
+	}
+
+	/**
+	 * @return the maximum number of nonces kept in the pool.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the number of nonces currently available in the pool.
+	 */
+	public int getAvailable() {
+		return capacity - free.availablePermits();
+	}
+
+	/**
+	 * @return the number of nonces taken from the pool.
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of nonces requested while the pool was depleted.
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the length of the fixed-size binary form of the nonces.
+	 */
+	public int getEncodedLength() {
+		return (bits + 7) / 8;
+	}
+
+	/**
+	 * Write the nonce in its fixed-size binary form, i.e. unsigned and
+	 * big-endian, padded to getEncodedLength() bytes.
+	 * 
+	 * @param nonce to encode, must not be longer than the configured length.
+	 * @param out the buffer to write to.
+	 */
+	public void encode(BigInteger nonce, ByteBuffer out) {
+		encode(nonce, getEncodedLength(), out);
+	}
+
+	/**
+	 * Read a nonce in its fixed-size binary form.
+	 * 
+	 * @param in the buffer to read getEncodedLength() bytes from.
+	 * @return the nonce.
+	 */
+	public BigInteger decode(ByteBuffer in) {
+		return decode(in, getEncodedLength());
+	}
+
+	/**
+	 * @return whether the nonce can be encoded in <code>length</code> bytes.
+	 */
+	static boolean fits(BigInteger nonce, int length) {
+		return nonce.signum() >= 0 && nonce.bitLength() <= 8 * length;
+	}
+
+	static void encode(BigInteger nonce, int length, ByteBuffer out) {
+		if (!fits(nonce, length)) {
+			throw new IllegalArgumentException("Nonce does not fit in " + length + " bytes");
+		}
+		byte[] bytes = nonce.toByteArray();
+		int offset = 0;
+		// Skip the sign byte
+		while (bytes.length - offset > length && bytes[offset] == 0) {
+			offset++;
+		}
+		for (int i = bytes.length - offset; i < length; i++) {
+			out.put((byte) 0);
+		}
+		out.put(bytes, offset, bytes.length - offset);
+	}
+
+	static BigInteger decode(ByteBuffer in, int length) {
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new BigInteger(1, bytes);
+	}
+}
@@ -0,0 +1,48 @@
+/**
+ * PipelinedIssuance.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+import java.util.Date;
+
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.keys.PrivateKey;
+
+/**
+ * Implemented by Credentials providers that can split issuance into rounds
+ * of commands, so that {@link BatchIssuer} can prepare the issuance of the
+ * next credential while the card works on the current one. The card does not
+ * need to support concurrent issuances: the rounds of different sessions are
+ * never interleaved on the card.
+ */
+public interface PipelinedIssuance extends Credentials {
+
+	/**
+	 * Start the issuance of a credential. The card must have been selected,
+	 * and the PIN verified, before the commands are sent. This must not
+	 * communicate with the card, as it may be called while the card is busy
+	 * with the rounds of another session.
+	 * 
+	 * @see Credentials#issue(CredentialDescription, PrivateKey, Attributes, Date)
+	 * @return the issuance session.
+	 * @throws CredentialsException
+	 */
+	public IssuanceSession startIssuance(CredentialDescription specification,
+			PrivateKey pkey, Attributes values, Date expires) throws CredentialsException;
+}
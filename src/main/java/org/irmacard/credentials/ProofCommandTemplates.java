@@ -0,0 +1,269 @@
+/**
+ * ProofCommandTemplates.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ProtocolCommand;
+
+import org.irmacard.credentials.info.DescriptionStore;
+import org.irmacard.credentials.info.VerificationDescription;
+import org.irmacard.credentials.util.CardVersion;
+
+/**
+ * Cache of compiled proof command templates. The commands returned by
+ * {@link Credentials#requestProofCommands(VerificationDescription, BigInteger)}
+ * only depend on the nonce in a few places. The first time a verification
+ * description is used, the commands are generated for two random probe nonces
+ * to locate these places. One probe has its top bit set and the other has it
+ * clear, so that an encoding that depends on the sign (such as
+ * BigInteger.toByteArray) is noticed. Later requests copy the template and patch in the
+ * nonce, instead of generating the commands again.
+ * 
+ * If the nonce cannot be located this way, for example because the commands
+ * contain data derived from the nonce, or because the nonce has a different
+ * length than the probes, the commands are generated as usual.
+ * 
+ * Templates are keyed by the verification description and the card version,
+ * and are discarded when the configuration in the DescriptionStore changes.
+ * This class is thread-safe, provided that the Credentials objects are.
+ */
+public class ProofCommandTemplates {
+	private final ConcurrentHashMap<Key, Template> templates =
+			new ConcurrentHashMap<Key, Template>();
+	private final SecureRandom random = new SecureRandom();
+	private volatile long generation = DescriptionStore.getGeneration();
+
+	/**
+	 * Get the commands to request a proof, from the cache if possible.
+	 * 
+	 * @param credentials used to generate the commands if they are not cached.
+	 * @param version of the card the commands are for.
+	 * @param specification of the credential and attributes to be verified.
+	 * @param nonce the nonce used as part of the challenge.
+	 * @return a fresh list of commands, which may be modified (e.g. wrapped).
+	 * @throws CredentialsException
+	 */
+	public List<ProtocolCommand> requestProofCommands(Credentials credentials,
+			CardVersion version, VerificationDescription specification,
+			BigInteger nonce) throws CredentialsException {
+		checkGeneration();
+
+		byte[] nonceBytes = magnitude(nonce);
+		Key key = new Key(specification, version, nonceBytes.length);
+		Template template = templates.get(key);
+		if (template == null) {
+			template = compile(credentials, specification, nonceBytes.length);
+			templates.put(key, template);
+		}
+
+		if (template.isEmpty()) {
+			return credentials.requestProofCommands(specification, nonce);
+		}
+		return template.instantiate(nonceBytes);
+	}
+
+	/**
+	 * Discard the templates of the given verification description.
+	 */
+	public void invalidate(VerificationDescription specification) {
+		for (Key key : templates.keySet()) {
+			if (key.specification == specification) {
+				templates.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Discard all templates.
+	 */
+	public void invalidate() {
+		templates.clear();
+	}
+
+	private void checkGeneration() {
+		long current = DescriptionStore.getGeneration();
+		if (current != generation) {
+			templates.clear();
+			generation = current;
+		}
+	}
+
+	private Template compile(Credentials credentials,
+			VerificationDescription specification, int nonceLength)
+			throws CredentialsException {
+		byte[] probe1 = probe(nonceLength, true);
+		byte[] probe2 = probe(nonceLength, false);
+
+		List<ProtocolCommand> commands1 = credentials.requestProofCommands(
+				specification, new BigInteger(1, probe1));
+		List<ProtocolCommand> commands2 = credentials.requestProofCommands(
+				specification, new BigInteger(1, probe2));
+		if (commands1.size() != commands2.size()) {
+			return Template.EMPTY;
+		}
+
+		Template template = new Template(commands1.size(), nonceLength);
+		for (int i = 0; i < commands1.size(); i++) {
+			ProtocolCommand command = commands1.get(i);
+			byte[] apdu = command.getAPDU().getBytes();
+
+			// Locate all occurrences of the probe
+			List<Integer> offsets = new ArrayList<Integer>();
+			for (int j = 0; j + nonceLength <= apdu.length; j++) {
+				if (regionEquals(apdu, j, probe1)) {
+					offsets.add(j);
+					j += nonceLength - 1;
+				}
+			}
+			template.set(i, command, apdu, offsets);
+		}
+
+		// Check that the template reproduces the commands for the second probe
+		List<ProtocolCommand> check = template.instantiate(probe2);
+		for (int i = 0; i < check.size(); i++) {
+			if (!check.get(i).getKey().equals(commands2.get(i).getKey())
+					|| !Arrays.equals(check.get(i).getAPDU().getBytes(),
+							commands2.get(i).getAPDU().getBytes())) {
+				return Template.EMPTY;
+			}
+		}
+		return template;
+	}
+
+	/**
+	 * Generate a random probe of the given length, with the top bit set or
+	 * clear. The first byte is never zero, so that the probe keeps the length
+	 * of the nonce.
+	 */
+	private byte[] probe(int length, boolean topBit) {
+		byte[] probe = new byte[length];
+		random.nextBytes(probe);
+		if (topBit) {
+			probe[0] |= 0x80;
+		} else {
+			probe[0] = (byte) (1 + random.nextInt(0x7F));
+		}
+		return probe;
+	}
+
+	private static boolean regionEquals(byte[] data, int offset, byte[] value) {
+		for (int i = 0; i < value.length; i++) {
+			if (data[offset + i] != value[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the nonce as unsigned big-endian bytes, without leading zeros.
+	 */
+	private static byte[] magnitude(BigInteger nonce) {
+		byte[] bytes = nonce.toByteArray();
+		if (bytes.length > 1 && bytes[0] == 0) {
+			return Arrays.copyOfRange(bytes, 1, bytes.length);
+		}
+		return bytes;
+	}
+
+	private static class Key {
+		final VerificationDescription specification;
+		final String version;
+		final int nonceLength;
+
+		Key(VerificationDescription specification, CardVersion version, int nonceLength) {
+			this.specification = specification;
+			this.version = version == null ? null : version.toString();
+			this.nonceLength = nonceLength;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(specification) * 31
+					+ (version == null ? 0 : version.hashCode()) + nonceLength;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return specification == other.specification
+					&& (version == null ? other.version == null : version.equals(other.version))
+					&& nonceLength == other.nonceLength;
+		}
+	}
+
+	private static class Template {
+		static final Template EMPTY = new Template(0, 0);
+
+		final int nonceLength;
+		final String[] keys;
+		final String[] descriptions;
+		final byte[][] apdus;
+		final int[][] nonceOffsets;
+
+		Template(int size, int nonceLength) {
+			this.nonceLength = nonceLength;
+			keys = new String[size];
+			descriptions = new String[size];
+			apdus = new byte[size][];
+			nonceOffsets = new int[size][];
+		}
+
+		boolean isEmpty() {
+			return apdus.length == 0;
+		}
+
+		void set(int i, ProtocolCommand command, byte[] apdu, List<Integer> offsets) {
+			keys[i] = command.getKey();
+			descriptions[i] = command.getDescription();
+			apdus[i] = apdu;
+			nonceOffsets[i] = new int[offsets.size()];
+			for (int j = 0; j < offsets.size(); j++) {
+				nonceOffsets[i][j] = offsets.get(j);
+			}
+		}
+
+		List<ProtocolCommand> instantiate(byte[] nonce) {
+			List<ProtocolCommand> commands = new ArrayList<ProtocolCommand>(apdus.length);
+			for (int i = 0; i < apdus.length; i++) {
+				byte[] apdu = apdus[i];
+				if (nonceOffsets[i].length > 0) {
+					apdu = apdu.clone();
+					for (int offset : nonceOffsets[i]) {
+						System.arraycopy(nonce, 0, apdu, offset, nonceLength);
+					}
+				}
+				commands.add(new ProtocolCommand(keys[i], descriptions[i],
+						new CommandAPDU(apdu)));
+			}
+			return commands;
+		}
+	}
+}
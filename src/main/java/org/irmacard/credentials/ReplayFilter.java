@@ -0,0 +1,248 @@
+/**
+ * ReplayFilter.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+import java.math.BigInteger;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Detects replayed nonces on the verification path, using a bounded amount
+ * of memory and without locking.
+ * 
+ * Nonces are remembered for a fixed retention period, split into a number of
+ * generations. Every generation is a Bloom filter covering a time slice; the
+ * filter of the oldest generation is cleared and reused when a new slice
+ * starts. In addition, the most recent nonces are kept exactly, compared by
+ * their full value. The exact window makes sure that two concurrent
+ * verifications with the same nonce cannot both be accepted, and covers the
+ * nonces recorded while a generation is being cleared.
+ * 
+ * Nonces are only detected while they are retained, so the retention period
+ * must be longer than the time a nonce can be used, e.g. the time to live of
+ * a verification session. Since a Bloom filter may report false positives, a
+ * fresh nonce is rejected with a small probability, which is configured when
+ * creating the filter.
+ */
+public class ReplayFilter {
+	private final long slice;
+	private final int generations;
+	private final int hashes;
+	private final int bitsMask;
+
+	// The bits of all generations, generation i occupies the words
+	// [i * wordsPerGeneration, (i + 1) * wordsPerGeneration)
+	private final AtomicLongArray bits;
+	private final int wordsPerGeneration;
+	// The time slice currently covered by each generation
+	private final AtomicLongArray slices;
+
+	private final ConcurrentHashMap<BigInteger, Boolean> recent;
+	private final AtomicReferenceArray<BigInteger> recentRing;
+	private final AtomicLong recentCount = new AtomicLong();
+
+	private final LongAdder rejected = new LongAdder();
+
+	/**
+	 * Create a replay filter.
+	 * 
+	 * @param retention the period for which nonces are remembered.
+	 * @param unit the unit of retention.
+	 * @param generations the number of time slices retention is split into,
+	 *        at least 2. More generations make the memory follow the load
+	 *        more closely.
+	 * @param expectedPerGeneration the expected number of nonces per time
+	 *        slice.
+	 * @param falsePositiveRate the acceptable probability of rejecting a fresh
+	 *        nonce, when the expected number of nonces is not exceeded.
+	 * @param exactWindow the number of most recent nonces to keep exactly.
+	 */
+	public ReplayFilter(long retention, TimeUnit unit, int generations,
+			int expectedPerGeneration, double falsePositiveRate, int exactWindow) {
+		if (generations < 2 || expectedPerGeneration <= 0 || exactWindow <= 0
+				|| falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+			throw new IllegalArgumentException("Invalid replay filter parameters");
+		}
+		this.generations = generations;
+		// The oldest generation is kept until it is reused, so nonces are
+		// retained for at least generations - 1 slices
+		this.slice = Math.max(1, unit.toMillis(retention) / (generations - 1));
+
+		// Check all live generations, so the error rate adds up
+		double p = falsePositiveRate / generations;
+		double ln2 = Math.log(2);
+		long m = (long) Math.ceil(-expectedPerGeneration * Math.log(p) / (ln2 * ln2));
+		// Round up to a power of two of at least one word
+		int bitCount = 64;
+		while (bitCount < m) {
+			bitCount <<= 1;
+		}
+		this.bitsMask = bitCount - 1;
+		this.hashes = Math.max(1, (int) Math.round((double) bitCount / expectedPerGeneration * ln2));
+		this.wordsPerGeneration = bitCount / 64;
+		this.bits = new AtomicLongArray(wordsPerGeneration * generations);
+
+		this.slices = new AtomicLongArray(generations);
+		long current = System.currentTimeMillis() / slice;
+		for (int i = 0; i < generations; i++) {
+			slices.set(i, Long.MIN_VALUE);
+		}
+		slices.set((int) (current % generations), current);
+
+		this.recent = new ConcurrentHashMap<BigInteger, Boolean>(exactWindow * 4 / 3 + 1);
+		this.recentRing = new AtomicReferenceArray<BigInteger>(exactWindow);
+	}
+
+	/**
+	 * Check whether the nonce is fresh, and record it as used.
+	 * 
+	 * @param nonce the nonce of a verification.
+	 * @return true if the nonce has not been seen before, false if it is (most
+	 *         likely) replayed.
+	 */
+	public boolean checkAndRecord(BigInteger nonce) {
+		long fingerprint = fingerprint(nonce);
+		long current = System.currentTimeMillis() / slice;
+		int generation = rotate(current);
+
+		if (contains(fingerprint, current) || recent.putIfAbsent(nonce, Boolean.TRUE) != null) {
+			rejected.increment();
+			return false;
+		}
+
+		add(fingerprint, generation);
+
+		// Make room in the exact window for the next nonce
+		int index = (int) (recentCount.getAndIncrement() % recentRing.length());
+		BigInteger evicted = recentRing.getAndSet(index, nonce);
+		if (evicted != null && !evicted.equals(nonce)) {
+			recent.remove(evicted);
+		}
+		return true;
+	}
+
+	/**
+	 * Check whether the nonce has been recorded, without recording it.
+	 * 
+	 * @return true if the nonce has (most likely) been recorded.
+	 */
+	public boolean isReplayed(BigInteger nonce) {
+		return recent.containsKey(nonce)
+				|| contains(fingerprint(nonce), System.currentTimeMillis() / slice);
+	}
+
+	/**
+	 * @return the number of nonces rejected by checkAndRecord().
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Make sure the generation for the current time slice is in use, clearing
+	 * it if it still covers an older slice.
+	 * 
+	 * @return the current generation.
+	 */
+	private int rotate(long current) {
+		int generation = (int) (current % generations);
+		long covered = slices.get(generation);
+		if (covered < current && slices.compareAndSet(generation, covered, current)) {
+			int base = generation * wordsPerGeneration;
+			for (int i = 0; i < wordsPerGeneration; i++) {
+				bits.set(base + i, 0);
+			}
+		}
+		return generation;
+	}
+
+	private boolean contains(long fingerprint, long current) {
+		for (int g = 0; g < generations; g++) {
+			long covered = slices.get(g);
+			// Skip generations that are not in use yet, or are being reused
+			if (covered <= current - generations || covered > current) {
+				continue;
+			}
+			if (containsIn(fingerprint, g)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean containsIn(long fingerprint, int generation) {
+		int base = generation * wordsPerGeneration;
+		long h1 = mix(fingerprint);
+		long h2 = mix(h1) | 1;
+		for (int i = 0; i < hashes; i++) {
+			int bit = (int) ((h1 + i * h2) & bitsMask);
+			if ((bits.get(base + (bit >>> 6)) & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void add(long fingerprint, int generation) {
+		int base = generation * wordsPerGeneration;
+		long h1 = mix(fingerprint);
+		long h2 = mix(h1) | 1;
+		for (int i = 0; i < hashes; i++) {
+			int bit = (int) ((h1 + i * h2) & bitsMask);
+			int word = base + (bit >>> 6);
+			long mask = 1L << bit;
+			long value;
+			do {
+				value = bits.get(word);
+			} while ((value & mask) == 0 && !bits.compareAndSet(word, value, value | mask));
+		}
+	}
+
+	/**
+	 * Hash all bytes of the nonce into the 64-bit value the Bloom filters are
+	 * indexed with.
+	 */
+	private static long fingerprint(BigInteger nonce) {
+		byte[] bytes = nonce.toByteArray();
+		long h = bytes.length;
+		long word = 0;
+		for (int i = 0; i < bytes.length; i++) {
+			word = (word << 8) | (bytes[i] & 0xFF);
+			if ((i & 7) == 7 || i == bytes.length - 1) {
+				h = mix(h ^ word);
+				word = 0;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * The finalizer of SplitMix64.
+	 */
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
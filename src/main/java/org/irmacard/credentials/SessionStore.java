@@ -0,0 +1,347 @@
+/**
+ * SessionStore.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.irmacard.credentials.info.VerificationDescription;
+
+/**
+ * Keeps the state of pending verification sessions between
+ * {@link Credentials#requestProofCommands(VerificationDescription, BigInteger)}
+ * and
+ * {@link Credentials#verifyProofResponses(VerificationDescription, BigInteger, net.sf.scuba.smartcards.ProtocolResponses)}:
+ * the verification description, the nonce and the send sequence counter of
+ * the secure messaging wrapper.
+ * 
+ * The sessions are spread over a number of independently locked stripes, to
+ * limit contention. The number of sessions is bounded; when a stripe is full
+ * its oldest session is evicted. Sessions also expire after a fixed time to
+ * live. Since all sessions have the same time to live, the oldest session is
+ * always the first to expire, so expired sessions are simply removed from
+ * the front of each stripe.
+ * 
+ * Optionally the nonce and counter are encoded into preallocated direct
+ * buffers, so that memory use is fixed up front and the nonces do not burden
+ * the garbage collector.
+ */
+public class SessionStore {
+	private static final int DEFAULT_STRIPES = 16;
+
+	private final Stripe[] stripes;
+	private final long ttl;
+	private final int nonceLength;
+
+	/**
+	 * Create a session store that keeps the sessions on the heap.
+	 * 
+	 * @param maxSessions the maximum number of pending sessions.
+	 * @param ttl the time to live of a session.
+	 * @param unit the unit of ttl.
+	 */
+	public SessionStore(int maxSessions, long ttl, TimeUnit unit) {
+		this(maxSessions, ttl, unit, 0);
+	}
+
+	/**
+	 * Create a session store.
+	 * 
+	 * @param maxSessions the maximum number of pending sessions.
+	 * @param ttl the time to live of a session.
+	 * @param unit the unit of ttl.
+	 * @param nonceBits the maximum length of the nonces in bits, to keep the
+	 *        nonces and counters in direct buffers, or 0 to keep them on the
+	 *        heap.
+	 */
+	public SessionStore(int maxSessions, long ttl, TimeUnit unit, int nonceBits) {
+		if (maxSessions <= 0 || ttl <= 0 || nonceBits < 0) {
+			throw new IllegalArgumentException("Invalid session store parameters");
+		}
+		this.ttl = unit.toNanos(ttl);
+		this.nonceLength = (nonceBits + 7) / 8;
+
+		int count = Math.min(DEFAULT_STRIPES, maxSessions);
+		stripes = new Stripe[count];
+		for (int i = 0; i < count; i++) {
+			// Spread the capacity, the first stripes take the remainder
+			int capacity = maxSessions / count + (i < maxSessions % count ? 1 : 0);
+			stripes[i] = new Stripe(capacity, nonceLength);
+		}
+	}
+
+	/**
+	 * Store the state of a session, replacing any earlier state with the same
+	 * id.
+	 * 
+	 * @param id of the session.
+	 * @param specification used to request the proof.
+	 * @param nonce used to request the proof.
+	 * @param ssc the initial send sequence counter of the proof commands.
+	 * @throws IllegalArgumentException if the nonces are kept in direct
+	 *         buffers, and the nonce does not fit in nonceBits rounded up
+	 *         to whole bytes.
+	 */
+	public void put(long id, VerificationDescription specification,
+			BigInteger nonce, long ssc) {
+		stripeFor(id).put(id, specification, nonce, ssc, System.nanoTime() + ttl);
+	}
+
+	/**
+	 * Get the state of a session.
+	 * 
+	 * @param id of the session.
+	 * @return the state, or null if the session is unknown or has expired.
+	 */
+	public Session get(long id) {
+		return stripeFor(id).get(id, false);
+	}
+
+	/**
+	 * Get and remove the state of a session, so that it can only be used
+	 * once.
+	 * 
+	 * @param id of the session.
+	 * @return the state, or null if the session is unknown or has expired.
+	 */
+	public Session take(long id) {
+		return stripeFor(id).get(id, true);
+	}
+
+	/**
+	 * Remove the state of a session.
+	 * 
+	 * @param id of the session.
+	 */
+	public void remove(long id) {
+		stripeFor(id).get(id, true);
+	}
+
+	/**
+	 * Remove all expired sessions. Expired sessions are also removed while
+	 * storing new sessions, so calling this is only needed to release memory
+	 * when the store is idle.
+	 */
+	public void expire() {
+		long now = System.nanoTime();
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				stripe.expire(now);
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of stored sessions, including those that have
+	 *         expired but have not been removed yet.
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				size += stripe.entries.size();
+			} finally {
+				stripe.lock.unlock();
+			}
+		}
+		return size;
+	}
+
+	private Stripe stripeFor(long id) {
+		// Mix the bits, ids are often sequential
+		long h = id * 0x9E3779B97F4A7C15L;
+		int index = (int) ((h >>> 32) % stripes.length);
+		return stripes[index];
+	}
+
+	/**
+	 * The state of a verification session.
+	 */
+	public static class Session {
+		private final VerificationDescription specification;
+		private final BigInteger nonce;
+		private final long ssc;
+
+		Session(VerificationDescription specification, BigInteger nonce, long ssc) {
+			this.specification = specification;
+			this.nonce = nonce;
+			this.ssc = ssc;
+		}
+
+		public VerificationDescription getSpecification() {
+			return specification;
+		}
+
+		public BigInteger getNonce() {
+			return nonce;
+		}
+
+		/**
+		 * @return the send sequence counter to use when unwrapping the
+		 *         responses.
+		 */
+		public long getSendSequenceCounter() {
+			return ssc;
+		}
+	}
+
+	private static class Entry {
+		final VerificationDescription specification;
+		final long expires;
+
+		// Kept either here, or in the slot of the stripe's buffer
+		final BigInteger nonce;
+		final long ssc;
+		final int slot;
+
+		Entry(VerificationDescription specification, long expires,
+				BigInteger nonce, long ssc, int slot) {
+			this.specification = specification;
+			this.expires = expires;
+			this.nonce = nonce;
+			this.ssc = ssc;
+			this.slot = slot;
+		}
+	}
+
+	private static class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		final LinkedHashMap<Long, Entry> entries;
+		final int capacity;
+
+		// Only used when encoding into direct buffers
+		final int nonceLength;
+		final int slotSize;
+		final ByteBuffer slab;
+		final int[] freeSlots;
+		int freeCount;
+
+		Stripe(int capacity, int nonceLength) {
+			this.capacity = capacity;
+			this.entries = new LinkedHashMap<Long, Entry>(capacity * 4 / 3 + 1);
+			this.nonceLength = nonceLength;
+			this.slotSize = 8 + nonceLength;
+			if (nonceLength > 0) {
+				slab = ByteBuffer.allocateDirect(capacity * slotSize);
+				freeSlots = new int[capacity];
+				for (int i = 0; i < capacity; i++) {
+					freeSlots[i] = capacity - 1 - i;
+				}
+				freeCount = capacity;
+			} else {
+				slab = null;
+				freeSlots = null;
+			}
+		}
+
+		void put(long id, VerificationDescription specification, BigInteger nonce,
+				long ssc, long expires) {
+			// Before anything changes, encoding cannot fail later on
+			if (slab != null && !NonceProvider.fits(nonce, nonceLength)) {
+				throw new IllegalArgumentException("Nonce does not fit in " + nonceLength + " bytes");
+			}
+
+			lock.lock();
+			try {
+				// Remove an earlier session with the same id first, so that
+				// the new one is inserted at the back
+				Entry previous = entries.remove(id);
+				if (previous != null) {
+					release(previous);
+				}
+				expire(System.nanoTime());
+				if (entries.size() == capacity) {
+					Iterator<Entry> eldest = entries.values().iterator();
+					release(eldest.next());
+					eldest.remove();
+				}
+
+				Entry entry;
+				if (slab == null) {
+					entry = new Entry(specification, expires, nonce, ssc, -1);
+				} else {
+					int slot = freeSlots[--freeCount];
+					slab.position(slot * slotSize);
+					slab.putLong(ssc);
+					NonceProvider.encode(nonce, nonceLength, slab);
+					entry = new Entry(specification, expires, null, 0, slot);
+				}
+				entries.put(id, entry);
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		Session get(long id, boolean remove) {
+			lock.lock();
+			try {
+				Entry entry = remove ? entries.remove(id) : entries.get(id);
+				if (entry == null) {
+					return null;
+				}
+
+				Session session = null;
+				if (entry.expires - System.nanoTime() > 0) {
+					if (slab == null) {
+						session = new Session(entry.specification, entry.nonce, entry.ssc);
+					} else {
+						slab.position(entry.slot * slotSize);
+						long ssc = slab.getLong();
+						BigInteger nonce = NonceProvider.decode(slab, nonceLength);
+						session = new Session(entry.specification, nonce, ssc);
+					}
+				}
+				if (remove) {
+					release(entry);
+				}
+				return session;
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		void expire(long now) {
+			Iterator<Entry> it = entries.values().iterator();
+			while (it.hasNext()) {
+				Entry entry = it.next();
+				if (entry.expires - now > 0) {
+					// All later entries expire later
+					break;
+				}
+				release(entry);
+				it.remove();
+			}
+		}
+
+		private void release(Entry entry) {
+			if (slab != null) {
+				freeSlots[freeCount++] = entry.slot;
+			}
+		}
+	}
+}
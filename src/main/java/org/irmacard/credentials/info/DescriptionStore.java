@@ -23,6 +23,7 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TODO: Change print statements to proper Logging statements
@@ -32,6 +33,11 @@ public class DescriptionStore {
 	static TreeWalkerI treeWalker;
 	
 	static DescriptionStore ds;
+
+	/**
+	 * Incremented whenever a description is added or updated.
+	 */
+	static final AtomicLong generation = new AtomicLong();
 	
 	HashMap<Integer,CredentialDescription> credentialDescriptions = new HashMap<Integer, CredentialDescription>();
 	HashMap<String,IssuerDescription> issuerDescriptions = new HashMap<String, IssuerDescription>();
@@ -56,6 +62,17 @@ public class DescriptionStore {
 		DescriptionStore.treeWalker = treeWalker;
 	}
 
+	/**
+	 * Get the current generation of the configuration. The generation changes
+	 * whenever a description is added or updated, so that derived data can
+	 * be discarded when the configuration changes.
+	 * 
+	 * @return The generation counter
+	 */
+	public static long getGeneration() {
+		return generation.get();
+	}
+
 	/**
 	 * Get DescriptionStore instance
 	 * 
@@ -121,6 +138,7 @@ public class DescriptionStore {
 					+ other.getIssuerID() + " has the same id (" + id + ").");
 		}
 		credentialDescriptions.put(id, cd);
+		generation.incrementAndGet();
 	}
 	
 	public IssuerDescription getIssuerDescription(String name) {
@@ -134,6 +152,7 @@ public class DescriptionStore {
 					+ " already exists.");
 		}
 		issuerDescriptions.put(id.getID(), id);
+		generation.incrementAndGet();
 	}
 
 	public void updateIssuerDescription(IssuerDescription id) {
@@ -141,6 +160,7 @@ public class DescriptionStore {
 			issuerDescriptions.remove(id.getID());
 		}
 		issuerDescriptions.put(id.getID(), id);
+		generation.incrementAndGet();
 	}
 
 	public void addVerificationDescription(VerificationDescription vd)
@@ -156,6 +176,7 @@ public class DescriptionStore {
 					+ id + ").");
 		}
 		verificationDescriptions.put(new Integer(vd.getID()), vd);
+		generation.incrementAndGet();
 	}
 
 	public void updateVerificationDescription(VerificationDescription vd)
@@ -165,6 +186,7 @@ public class DescriptionStore {
 			verificationDescriptions.remove(id);
 		}
 		verificationDescriptions.put(new Integer(vd.getID()), vd);
+		generation.incrementAndGet();
 	}
 	
 	public Collection<IssuerDescription> getIssuerDescriptions() {
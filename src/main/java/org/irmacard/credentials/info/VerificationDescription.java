@@ -205,6 +205,7 @@ public class VerificationDescription extends ConfigurationParser implements Seri
 
 	public void updateCredentialDescription(CredentialDescription c) {
 		credentialDescription = c;
+		DescriptionStore.generation.incrementAndGet();
 	}
 
 	/**
@@ -20,12 +20,9 @@
 package org.irmacard.credentials.util;
 
 import java.math.BigInteger;
-import java.security.MessageDigest;
 import java.util.Random;
 
 import javax.crypto.SecretKey;
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.DESedeKeySpec;
 
 import net.sf.scuba.smartcards.CardService;
 import net.sf.scuba.smartcards.CardServiceException;
@@ -38,6 +35,9 @@ public class CardAuthenticationService extends CardService {
 
 	private static final byte CLA_ISO7816 = 0x00;
 	private static final byte INS_ISO7816_INTERNAL_AUTHENTICATE = (byte) 0x88;
+	private static final int SW_INCORRECT_P1P2 = 0x6A86;
+	private static final int ENC_MODE = 1;
+	private static final int MAC_MODE = 2;
 	private CardService service;
 
 	public CardAuthenticationService(CardService service) {
@@ -75,59 +75,154 @@ public class CardAuthenticationService extends CardService {
 		return service.getATR();
 	}
 
+	/**
+	 * Authenticates the card and sets up a 3DES secure messaging session.
+	 */
 	public SecureMessagingWrapper authenticateCard(BigInteger modulus, BigInteger exponent) 
+    throws CardServiceException {
+		return authenticateCard(modulus, exponent, CipherSuite.DESEDE);
+	}
+
+	/**
+	 * Authenticates the card and sets up a secure messaging session using
+	 * the first of the given suites the card supports.
+	 * 
+	 * The suite is requested in P1 of INTERNAL AUTHENTICATE, and a card
+	 * signals that it does not support it by answering 6A86. The response of
+	 * the card does not confirm the suite, so a card that ignores P1, such as
+	 * an applet that predates the negotiation of suites, derives 3DES keys
+	 * whatever is requested, and the session then fails at the first
+	 * protected command. Only offer suites other than
+	 * {@link CipherSuite#DESEDE} to cards that are known to reject unknown
+	 * values of P1.
+	 * 
+	 * @param suites the acceptable suites, in order of preference
+	 */
+	public SecureMessagingWrapper authenticateCard(BigInteger modulus, BigInteger exponent,
+			CipherSuite... suites) 
+    throws CardServiceException {
+		for (CipherSuite suite : suites) {
+			SecureMessagingWrapper wrapper = authenticateCard(modulus, suite);
+			if (wrapper != null) {
+				return wrapper;
+			}
+		}
+		throw new CardServiceException("Card authentication failed: no supported cipher suite.");
+	}
+
+	/**
+	 * @return the wrapper, or null if the card does not support the suite.
+	 */
+	private SecureMessagingWrapper authenticateCard(BigInteger modulus, CipherSuite suite) 
     throws CardServiceException {
     	SecretKey encKey, macKey; long ssc = 0;
     	BigInteger terminalSeedInt = new BigInteger(modulus.bitLength(), new Random());
     	terminalSeedInt.mod(modulus);
-    	byte[] terminalSeedBytes = terminalSeedInt.toByteArray();
-    	byte[] terminalSeed = new byte[128];
-    	System.arraycopy(terminalSeedBytes, 0, terminalSeed, terminalSeed.length - terminalSeedBytes.length, terminalSeedBytes.length);
-    	CommandAPDU command = new CommandAPDU(CLA_ISO7816, INS_ISO7816_INTERNAL_AUTHENTICATE, 0x00, 0x00, terminalSeed);
+    	byte[] terminalSeed = encodeSeed(terminalSeedInt, 128);
+    	CommandAPDU command = new CommandAPDU(CLA_ISO7816, INS_ISO7816_INTERNAL_AUTHENTICATE, suite.getIdentifier(), 0x00, terminalSeed);
     	ResponseAPDU response = service.transmit(command);
+    	if (response.getSW() == SW_INCORRECT_P1P2 && suite != CipherSuite.DESEDE) {
+    		return null;
+    	}
     	if (response.getSW() != 0x9000) {
     		throw new CardServiceException("Card authentication failed.");
     	}
     	byte[] cardSeed = response.getData();
     	
     	try{
-			MessageDigest shaDigest = MessageDigest.getInstance("SHA1");
-			SecretKeyFactory desKeyFactory = SecretKeyFactory.getInstance("DESede");
-			byte[] sscBytes = new byte[8], hash = new byte[20], key = new byte[24];
-		
-			shaDigest.update(cardSeed);
-			shaDigest.update(terminalSeed);			
-			shaDigest.update(new byte[]{ 0x00, 0x00, 0x00, 0x01 }); // ENC_MODE
-			hash = shaDigest.digest();
-			System.arraycopy(hash, 0, key, 0, 8);
-			System.arraycopy(hash, 8, key, 8, 8);
-			System.arraycopy(hash, 0, key, 16, 8);
-			encKey = desKeyFactory.generateSecret(new DESedeKeySpec(key));			
-			System.arraycopy(hash, 16, sscBytes, 0, 4);
-		
-			shaDigest.update(cardSeed);
-			shaDigest.update(terminalSeed);			
-			shaDigest.update(new byte[]{ 0x00, 0x00, 0x00, 0x02 }); // ENC_MODE
-			hash = shaDigest.digest();
-			System.arraycopy(hash, 0, key, 0, 8);
-			System.arraycopy(hash, 8, key, 8, 8);
-			System.arraycopy(hash, 0, key, 16, 8);
-			macKey = desKeyFactory.generateSecret(new DESedeKeySpec(key));			
-			System.arraycopy(hash, 16, sscBytes, 4, 4);
-			
-			for (int i = 0; i < sscBytes.length; i++) {
-				ssc = (ssc << 8) | (sscBytes[i] & 0x000000ff);
+			byte[] hash = suite.deriveKeyMaterial(cardSeed, terminalSeed, ENC_MODE);
+			encKey = suite.createKey(hash);
+			for (int i = 16; i < 20; i++) {
+				ssc = (ssc << 8) | (hash[i] & 0x000000ff);
+			}
+
+			hash = suite.deriveKeyMaterial(cardSeed, terminalSeed, MAC_MODE);
+			macKey = suite.createKey(hash);
+			for (int i = 16; i < 20; i++) {
+				ssc = (ssc << 8) | (hash[i] & 0x000000ff);
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new CardServiceException("Key derivation failed: " + e.getMessage());
 		}
     	
+    	SecureMessagingWrapper wrapper;
     	try {
-			return new SecureMessagingWrapper(encKey, macKey, ssc);
+			wrapper = new SecureMessagingWrapper(encKey, macKey, ssc, suite);
 		} catch (Exception e) {
 			e.printStackTrace();
     		throw new CardServiceException("Secure messaging setup failed: " + e.getMessage());
 		}
+    	wrapper.setExtendedLength(supportsExtendedLength(service.getATR()));
+    	return wrapper;
     }
+
+	/**
+	 * Encodes the seed as an unsigned big-endian number of the given length.
+	 * The sign byte that toByteArray() adds when the most significant bit is
+	 * set is dropped.
+	 */
+	static byte[] encodeSeed(BigInteger seed, int length) {
+		byte[] bytes = seed.toByteArray();
+		byte[] encoded = new byte[length];
+		int copy = Math.min(bytes.length, length);
+		System.arraycopy(bytes, bytes.length - copy, encoded, length - copy, copy);
+		return encoded;
+	}
+
+	/**
+	 * Checks whether the card indicates support for extended length apdus in
+	 * the card capabilities (ISO 7816-4, 8.1.1.2.7) in the historical bytes
+	 * of its ATR.
+	 * 
+	 * @param atr the ATR of the card, or null
+	 * @return whether extended Lc and Le fields are supported.
+	 */
+	public static boolean supportsExtendedLength(byte[] atr) {
+		if (atr == null || atr.length < 2) {
+			return false;
+		}
+
+		/* Skip the interface bytes, as indicated by T0 and the TDi */
+		int k = atr[1] & 0x0F;
+		int y = (atr[1] & 0xF0) >> 4;
+		int offset = 2;
+		while (true) {
+			offset += Integer.bitCount(y & 0x07);
+			if ((y & 0x08) == 0 || offset >= atr.length) {
+				break;
+			}
+			y = (atr[offset++] & 0xF0) >> 4;
+		}
+		if (offset + k > atr.length || k < 1) {
+			return false;
+		}
+
+		/* Compact-TLV objects follow category indicator 00 or 80 */
+		int end = offset + k;
+		switch (atr[offset++]) {
+		case (byte) 0x00:
+			// Followed by a 3 byte status indicator
+			end -= 3;
+		break;
+		case (byte) 0x80:
+		break;
+		default:
+			return false;
+		}
+		while (offset < end) {
+			int tag = (atr[offset] & 0xF0) >> 4;
+			int length = atr[offset] & 0x0F;
+			offset++;
+			if (offset + length > end) {
+				return false;
+			}
+			if (tag == 0x7 && length >= 3) {
+				// Third software function table, extended Lc and Le fields
+				return (atr[offset + 2] & 0x40) != 0;
+			}
+			offset += length;
+		}
+		return false;
+	}
 }
@@ -0,0 +1,49 @@
+/**
+ * CardServiceFactory.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials.util;
+
+import net.sf.scuba.smartcards.CardService;
+import net.sf.scuba.smartcards.CardServiceException;
+
+/**
+ * Creates and checks the card services kept by a {@link CardServicePool}.
+ */
+public interface CardServiceFactory {
+
+	/**
+	 * Create a card service for the given terminal, ready for use: the
+	 * service is opened and the applet is selected.
+	 * 
+	 * @param terminal identifies the terminal.
+	 * @return the opened card service.
+	 * @throws CardServiceException if no connection could be made.
+	 */
+	public CardService create(String terminal) throws CardServiceException;
+
+	/**
+	 * Check whether a service that has been idle can still be used, e.g. by
+	 * checking that the same card is still present.
+	 * 
+	 * @param terminal identifies the terminal.
+	 * @param service the idle service.
+	 * @return whether the service can be used.
+	 */
+	public boolean validate(String terminal, CardService service);
+}
@@ -0,0 +1,262 @@
+/**
+ * CardServicePool.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials.util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.scuba.smartcards.CardService;
+import net.sf.scuba.smartcards.CardServiceException;
+
+/**
+ * Keeps card services open between operations, so that not every operation
+ * has to connect to the reader and select the applet again.
+ * 
+ * Services are borrowed per terminal, and returned by closing the lease:
+ * <pre>
+ * try (CardServicePool.Lease lease = pool.borrow(terminal, 10, TimeUnit.SECONDS)) {
+ *     CardAuthenticationService auth = new CardAuthenticationService(lease.getService());
+ *     ...
+ * }
+ * </pre>
+ * Every terminal has its own queue, in which waiting callers are served in
+ * order of arrival, so that a busy terminal does not hold up the others.
+ * Idle services are checked with the factory before they are handed out
+ * again, and are closed once they have been idle for too long.
+ */
+public class CardServicePool implements AutoCloseable {
+	private final CardServiceFactory factory;
+	private final int maxPerTerminal;
+	private final long maxIdle;
+	private final ConcurrentHashMap<String, Terminal> terminals =
+			new ConcurrentHashMap<String, Terminal>();
+	private final ScheduledExecutorService evictor;
+	private volatile boolean closed;
+
+	/**
+	 * Create a pool.
+	 * 
+	 * @param factory to create and check the services.
+	 * @param maxPerTerminal the maximum number of services per terminal that
+	 *        are in use at the same time, usually 1.
+	 * @param maxIdle the time after which an idle service is closed.
+	 * @param unit the unit of maxIdle.
+	 */
+	public CardServicePool(CardServiceFactory factory, int maxPerTerminal,
+			long maxIdle, TimeUnit unit) {
+		if (maxPerTerminal <= 0 || maxIdle <= 0) {
+			throw new IllegalArgumentException("Invalid pool parameters");
+		}
+		this.factory = factory;
+		this.maxPerTerminal = maxPerTerminal;
+		this.maxIdle = unit.toNanos(maxIdle);
+
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CardServicePool-evictor");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		long period = Math.max(1, this.maxIdle / 2);
+		evictor.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				evictIdle();
+			}
+		}, period, period, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Borrow a service for the given terminal, waiting for it to become
+	 * available if necessary.
+	 * 
+	 * @param terminal identifies the terminal.
+	 * @param timeout the maximum time to wait.
+	 * @param unit the unit of timeout.
+	 * @return the lease, which must be closed to return the service.
+	 * @throws CardServiceException if no service became available in time,
+	 *         or a new service could not be created.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public Lease borrow(String terminal, long timeout, TimeUnit unit)
+			throws CardServiceException, InterruptedException {
+		if (closed) {
+			throw new CardServiceException("Card service pool is closed");
+		}
+
+		Terminal t = terminals.get(terminal);
+		if (t == null) {
+			Terminal created = new Terminal(maxPerTerminal);
+			t = terminals.putIfAbsent(terminal, created);
+			if (t == null) {
+				t = created;
+			}
+		}
+
+		if (!t.permits.tryAcquire(timeout, unit)) {
+			throw new CardServiceException("Timeout waiting for terminal " + terminal);
+		}
+		try {
+			CardService service;
+			while ((service = t.pollIdle()) != null) {
+				if (service.isOpen() && factory.validate(terminal, service)) {
+					return new Lease(terminal, t, service);
+				}
+				service.close();
+			}
+			return new Lease(terminal, t, factory.create(terminal));
+		} catch (CardServiceException e) {
+			t.permits.release();
+			throw e;
+		} catch (RuntimeException e) {
+			t.permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Close all services that have been idle for too long. This is done
+	 * periodically by the pool itself.
+	 */
+	public void evictIdle() {
+		long limit = System.nanoTime() - maxIdle;
+		for (Terminal t : terminals.values()) {
+			t.evict(limit, false);
+		}
+	}
+
+	/**
+	 * Close all idle services. Services that are still borrowed are closed
+	 * when they are returned.
+	 */
+	public void close() {
+		closed = true;
+		evictor.shutdownNow();
+		for (Terminal t : terminals.values()) {
+			t.evict(0, true);
+		}
+	}
+
+	private void release(Terminal t, CardService service, boolean valid) {
+		if (!valid || closed || !service.isOpen()) {
+			service.close();
+		} else {
+			t.addIdle(service);
+			// The pool may have been closed while adding
+			if (closed) {
+				t.evict(0, true);
+			}
+		}
+		t.permits.release();
+	}
+
+	/**
+	 * A borrowed card service. Closing the lease returns the service to the
+	 * pool.
+	 */
+	public class Lease implements AutoCloseable {
+		private final String terminal;
+		private final Terminal t;
+		private final CardService service;
+		private boolean valid = true;
+		private boolean returned;
+
+		Lease(String terminal, Terminal t, CardService service) {
+			this.terminal = terminal;
+			this.t = t;
+			this.service = service;
+		}
+
+		/**
+		 * @return the terminal the service is connected to.
+		 */
+		public String getTerminal() {
+			return terminal;
+		}
+
+		/**
+		 * @return the borrowed service.
+		 */
+		public CardService getService() {
+			return service;
+		}
+
+		/**
+		 * Mark the service as broken, so that it is closed instead of
+		 * returned to the pool, e.g. after a communication error.
+		 */
+		public void invalidate() {
+			valid = false;
+		}
+
+		/**
+		 * Return the service to the pool.
+		 */
+		public void close() {
+			if (!returned) {
+				returned = true;
+				release(t, service, valid);
+			}
+		}
+	}
+
+	private static class Terminal {
+		final Semaphore permits;
+		// Most recently used first; guarded by this
+		final ArrayDeque<CardService> idle = new ArrayDeque<CardService>();
+		final ArrayDeque<Long> idleSince = new ArrayDeque<Long>();
+
+		Terminal(int maxPerTerminal) {
+			permits = new Semaphore(maxPerTerminal, true);
+		}
+
+		synchronized CardService pollIdle() {
+			idleSince.pollFirst();
+			return idle.pollFirst();
+		}
+
+		synchronized void addIdle(CardService service) {
+			idle.addFirst(service);
+			idleSince.addFirst(System.nanoTime());
+		}
+
+		/**
+		 * Close the services idle since before limit, or all idle services.
+		 */
+		void evict(long limit, boolean all) {
+			ArrayDeque<CardService> evicted = new ArrayDeque<CardService>();
+			synchronized (this) {
+				// The least recently used services are at the end
+				while (!idle.isEmpty() && (all || idleSince.peekLast() - limit <= 0)) {
+					idleSince.pollLast();
+					evicted.add(idle.pollLast());
+				}
+			}
+			for (CardService service : evicted) {
+				service.close();
+			}
+		}
+	}
+}
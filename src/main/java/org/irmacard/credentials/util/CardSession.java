@@ -0,0 +1,42 @@
+/**
+ * CardSession.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials.util;
+
+import net.sf.scuba.smartcards.CardService;
+
+/**
+ * A complete interaction with a card, such as authenticating the card,
+ * verifying the PIN and running a protocol, to be run by a
+ * {@link CardSessionExecutor}.
+ * 
+ * @param <T> the result of the session
+ */
+public interface CardSession<T> {
+
+	/**
+	 * Run the session. The session should give up when its thread is
+	 * interrupted, which happens when the session is cancelled.
+	 * 
+	 * @param service to communicate with the card.
+	 * @return the result of the session.
+	 * @throws Exception if the session fails.
+	 */
+	public T run(CardService service) throws Exception;
+}
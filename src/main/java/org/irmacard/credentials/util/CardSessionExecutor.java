@@ -0,0 +1,274 @@
+/**
+ * CardSessionExecutor.java
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import net.sf.scuba.smartcards.CardService;
+
+/**
+ * Runs card sessions, each on its own thread. On runtimes that support
+ * virtual threads these are used by default, so that a session blocked on
+ * the card (for example during PIN entry) does not tie up a platform thread.
+ * 
+ * Sessions for the same reader are run one after the other, in the order in
+ * which they were submitted. A reader only has a thread while it has
+ * sessions to run.
+ * 
+ * Sessions can be cancelled individually, through the returned future, per
+ * reader, or all at once when the executor is closed. Cancelling a running
+ * session interrupts its thread. Closing the executor waits until all
+ * sessions have stopped, so that no session outlives the executor.
+ */
+public class CardSessionExecutor implements AutoCloseable {
+	private final ThreadFactory threadFactory;
+	private final ConcurrentHashMap<String, Reader> readers =
+			new ConcurrentHashMap<String, Reader>();
+	private volatile boolean closed;
+
+	/**
+	 * Create an executor that uses virtual threads if available, and daemon
+	 * platform threads otherwise.
+	 */
+	public CardSessionExecutor() {
+		this(defaultThreadFactory());
+	}
+
+	/**
+	 * Create an executor that creates the session threads using the given
+	 * factory.
+	 */
+	public CardSessionExecutor(ThreadFactory threadFactory) {
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * Get a factory for virtual threads, if the runtime supports them, or
+	 * for daemon platform threads otherwise.
+	 */
+	public static ThreadFactory defaultThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+					.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			// Virtual threads are not available
+			return new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "CardSession");
+					t.setDaemon(true);
+					return t;
+				}
+			};
+		}
+	}
+
+	/**
+	 * Submit a session for the given reader. It is run once the earlier
+	 * sessions for the same reader have finished.
+	 * 
+	 * @param reader identifies the reader, e.g. its name.
+	 * @param service to communicate with the card in the reader.
+	 * @param session to run.
+	 * @return a future for the result of the session.
+	 */
+	public <T> CompletableFuture<T> submit(String reader, CardService service,
+			CardSession<T> session) {
+		Task<T> task = new Task<T>(service, session);
+		if (closed) {
+			task.future.cancel(false);
+			return task.future;
+		}
+
+		Reader r = readers.get(reader);
+		if (r == null) {
+			Reader created = new Reader();
+			r = readers.putIfAbsent(reader, created);
+			if (r == null) {
+				r = created;
+			}
+		}
+		r.submit(task);
+
+		// The executor may have been closed while submitting
+		if (closed) {
+			r.cancel();
+		}
+		return task.future;
+	}
+
+	/**
+	 * Cancel all pending and running sessions of the given reader.
+	 */
+	public void cancel(String reader) {
+		Reader r = readers.get(reader);
+		if (r != null) {
+			r.cancel();
+		}
+	}
+
+	/**
+	 * Cancel all sessions, and wait until their threads have stopped. No
+	 * sessions can be submitted afterwards. If the calling thread is
+	 * interrupted while waiting, it keeps waiting and its interrupt status is
+	 * restored afterwards.
+	 */
+	public void close() {
+		closed = true;
+		List<Thread> threads = new ArrayList<Thread>();
+		for (Reader r : readers.values()) {
+			Thread t = r.cancel();
+			if (t != null) {
+				threads.add(t);
+			}
+		}
+
+		boolean interrupted = false;
+		for (Thread t : threads) {
+			while (t.isAlive()) {
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private class Reader implements Runnable {
+		final ConcurrentLinkedQueue<Task<?>> queue = new ConcurrentLinkedQueue<Task<?>>();
+		final AtomicBoolean active = new AtomicBoolean();
+		volatile Thread thread;
+		volatile Task<?> current;
+
+		void submit(Task<?> task) {
+			queue.offer(task);
+			schedule();
+		}
+
+		private void schedule() {
+			if (!queue.isEmpty() && active.compareAndSet(false, true)) {
+				Thread t = threadFactory.newThread(this);
+				thread = t;
+				t.start();
+			}
+		}
+
+		public void run() {
+			try {
+				Task<?> task;
+				while ((task = queue.poll()) != null) {
+					current = task;
+					task.run();
+					current = null;
+				}
+			} finally {
+				current = null;
+				thread = null;
+				active.set(false);
+				// A task may have been added after the last poll
+				schedule();
+			}
+		}
+
+		/**
+		 * Cancel all tasks.
+		 * @return the thread running the tasks, if any.
+		 */
+		Thread cancel() {
+			Task<?> task;
+			while ((task = queue.poll()) != null) {
+				task.future.cancel(false);
+			}
+			Thread t = thread;
+			Task<?> running = current;
+			if (running != null) {
+				// Interrupts the thread if the task is still running
+				running.future.cancel(false);
+			}
+			return t;
+		}
+	}
+
+	private static class Task<T> {
+		final CardService service;
+		final CardSession<T> session;
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		// The thread running the session, guarded by this
+		private Thread thread;
+
+		Task(CardService service, CardSession<T> session) {
+			this.service = service;
+			this.session = session;
+		}
+
+		void run() {
+			if (future.isDone()) {
+				// Cancelled while pending
+				return;
+			}
+
+			// Interrupt the session when it is cancelled while running
+			synchronized (this) {
+				thread = Thread.currentThread();
+			}
+			future.whenComplete(new BiConsumer<T, Throwable>() {
+				public void accept(T result, Throwable e) {
+					if (e instanceof CancellationException) {
+						interrupt();
+					}
+				}
+			});
+
+			try {
+				future.complete(session.run(service));
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			} finally {
+				synchronized (this) {
+					thread = null;
+					// Do not let a cancellation leak into the next session
+					Thread.interrupted();
+				}
+			}
+		}
+
+		/**
+		 * Interrupt the thread, but only while it is still running this
+		 * session.
+		 */
+		synchronized void interrupt() {
+			if (thread != null) {
+				thread.interrupt();
+			}
+		}
+	}
+}
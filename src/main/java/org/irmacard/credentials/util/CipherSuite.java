@@ -0,0 +1,178 @@
+/**
+ * CipherSuite.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials.util;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.DESedeKeySpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The cryptographic primitives of a secure messaging session, negotiated
+ * during card authentication. The identifier is sent in P1 of the INTERNAL
+ * AUTHENTICATE command.
+ */
+public enum CipherSuite {
+
+	/** 3DES in CBC mode with a 3DES MAC, keys derived using SHA-1 */
+	DESEDE(0x00, "DESede", "DESede/CBC/NoPadding", "DESEDEMAC64", "SHA1", 8),
+
+	/**
+	 * AES-128 in CBC mode with a CMAC, keys derived using SHA-256. As in ICAO
+	 * 9303-11, the IV of each message is the send sequence counter encrypted
+	 * with the encryption key.
+	 */
+	AES(0x01, "AES", "AES/CBC/NoPadding", "AESCMAC", "SHA-256", 16);
+
+	private final int identifier;
+	private final String keyAlgorithm;
+	private final String cipherAlgorithm;
+	private final String macAlgorithm;
+	private final String digestAlgorithm;
+	private final int blockSize;
+	private final IvParameterSpec zeroIV;
+
+	private CipherSuite(int identifier, String keyAlgorithm, String cipherAlgorithm,
+			String macAlgorithm, String digestAlgorithm, int blockSize) {
+		this.identifier = identifier;
+		this.keyAlgorithm = keyAlgorithm;
+		this.cipherAlgorithm = cipherAlgorithm;
+		this.macAlgorithm = macAlgorithm;
+		this.digestAlgorithm = digestAlgorithm;
+		this.blockSize = blockSize;
+		this.zeroIV = new IvParameterSpec(new byte[blockSize]);
+	}
+
+	/**
+	 * @return the identifier of the suite in the INTERNAL AUTHENTICATE command.
+	 */
+	public int getIdentifier() {
+		return identifier;
+	}
+
+	public String getCipherAlgorithm() {
+		return cipherAlgorithm;
+	}
+
+	public String getMacAlgorithm() {
+		return macAlgorithm;
+	}
+
+	/**
+	 * @return the block size of the cipher, which is also the size padding
+	 *         is applied to.
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	IvParameterSpec getZeroIV() {
+		return zeroIV;
+	}
+
+	/**
+	 * Creates the cipher to derive the IV of each message with, to be
+	 * initialized for encryption with the session encryption key.
+	 *
+	 * @return the cipher, or null if all messages use the zero IV.
+	 */
+	Cipher createIVCipher() throws GeneralSecurityException {
+		if (this == AES) {
+			return Cipher.getInstance("AES/ECB/NoPadding");
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the IV to encrypt or decrypt the message with the given send
+	 * sequence counter with.
+	 *
+	 * @param ivCipher the cipher created by {@link #createIVCipher()},
+	 *        initialized with the encryption key, or null.
+	 */
+	IvParameterSpec getIV(Cipher ivCipher, long ssc) throws GeneralSecurityException {
+		if (ivCipher == null) {
+			return zeroIV;
+		}
+		byte[] block = new byte[blockSize];
+		for (int i = blockSize - 1; i >= blockSize - 8; i--) {
+			block[i] = (byte) ssc;
+			ssc >>>= 8;
+		}
+		return new IvParameterSpec(ivCipher.doFinal(block));
+	}
+
+	/**
+	 * Gets the suite with the given identifier.
+	 *
+	 * @return the suite, or null if the identifier is unknown.
+	 */
+	public static CipherSuite forIdentifier(int identifier) {
+		for (CipherSuite suite : values()) {
+			if (suite.identifier == identifier) {
+				return suite;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Computes the key material for a session key from the seeds exchanged
+	 * during card authentication.
+	 *
+	 * @param mode 1 for the encryption key, 2 for the MAC key
+	 * @return the hash, of which bytes 16 to 20 also form half of the
+	 *         initial send sequence counter.
+	 */
+	byte[] deriveKeyMaterial(byte[] cardSeed, byte[] terminalSeed, int mode)
+	throws GeneralSecurityException {
+		MessageDigest digest = MessageDigest.getInstance(digestAlgorithm);
+		digest.update(cardSeed);
+		digest.update(terminalSeed);
+		digest.update(new byte[] { 0x00, 0x00, 0x00, (byte) mode });
+		return digest.digest();
+	}
+
+	/**
+	 * Creates a session key from the first 16 bytes of key material.
+	 */
+	SecretKey createKey(byte[] material) throws GeneralSecurityException {
+		if (this == DESEDE) {
+			byte[] key = new byte[24];
+			System.arraycopy(material, 0, key, 0, 8);
+			System.arraycopy(material, 8, key, 8, 8);
+			System.arraycopy(material, 0, key, 16, 8);
+			return SecretKeyFactory.getInstance(keyAlgorithm).generateSecret(new DESedeKeySpec(key));
+		}
+		return new SecretKeySpec(material, 0, 16, keyAlgorithm);
+	}
+
+	/**
+	 * Recreates a session key from its encoded form.
+	 */
+	SecretKey restoreKey(byte[] encoded) {
+		return new SecretKeySpec(encoded, keyAlgorithm);
+	}
+}
@@ -0,0 +1,694 @@
+/**
+ * SecureMessagingEngine.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials.util;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ISO7816;
+
+/**
+ * The cryptographic work of {@link SecureMessagingWrapper}: the primitives
+ * of a cipher suite, initialized with the session keys, and the buffers to
+ * wrap and unwrap in. The send sequence counter is passed in for each
+ * apdu, so that apdus can be processed independently of each other, and in
+ * parallel using one engine per thread.
+ *
+ * Creating the primitives involves provider lookups, so engines are
+ * borrowed from a pool using {@link #acquire(CipherSuite)} and given back
+ * using {@link #release()}. An idle engine retains nothing of its last
+ * session: its primitives are initialized with a random key that is never
+ * used for secure messaging, and its buffers are cleared. An engine is not
+ * thread-safe.
+ */
+final class SecureMessagingEngine {
+
+	/** Maximum number of idle engines kept per suite */
+	private static final int POOL_CAPACITY = 64;
+
+	private static final Pool[] POOLS = new Pool[CipherSuite.values().length];
+	static {
+		for (CipherSuite suite : CipherSuite.values()) {
+			POOLS[suite.ordinal()] = new Pool(suite);
+		}
+	}
+
+	/** Padding according to ISO9797-1 method 2, for a block of any length */
+	private static final byte[] PADDING = new byte[] {
+		(byte) 0x80, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+
+	/** Length of the (truncated) MAC in DO'8E */
+	static final int MAC_LENGTH = 8;
+
+	private final CipherSuite suite;
+	private final int blockSize;
+	private final Cipher encryptCipher, decryptCipher;
+	/* Derives the IV of each message, null if the suite uses the zero IV */
+	private final Cipher ivCipher;
+	private final Mac mac;
+	private SecretKey ksEnc, ksMac;
+
+	/*
+	 * Reusable space to assemble protected apdus and MAC inputs in, so
+	 * that wrapping and unwrapping create (nearly) no garbage.
+	 */
+	private byte[] buffer = new byte[256];
+	private final byte[] block = new byte[2 * 16];
+
+	/* The data objects found by parseResponse, as absolute positions */
+	private int dataOffset, dataLength, ccOffset;
+	private short sw;
+
+	/**
+	 * @throws GeneralSecurityException
+	 *             when the available JCE providers cannot provide the
+	 *             cryptographic primitives of the suite.
+	 */
+	SecureMessagingEngine(CipherSuite suite) throws GeneralSecurityException {
+		this.suite = suite;
+		this.blockSize = suite.getBlockSize();
+		encryptCipher = Cipher.getInstance(suite.getCipherAlgorithm());
+		decryptCipher = Cipher.getInstance(suite.getCipherAlgorithm());
+		ivCipher = suite.createIVCipher();
+		mac = Mac.getInstance(suite.getMacAlgorithm());
+	}
+
+	/**
+	 * Borrows an idle engine for the suite from the pool, or creates one if
+	 * there is none.
+	 *
+	 * @throws GeneralSecurityException
+	 *             when the available JCE providers cannot provide the
+	 *             cryptographic primitives of the suite.
+	 */
+	static SecureMessagingEngine acquire(CipherSuite suite)
+	throws GeneralSecurityException {
+		Pool pool = POOLS[suite.ordinal()];
+		SecureMessagingEngine engine = pool.idle.poll();
+		if (engine != null) {
+			pool.size.decrementAndGet();
+			return engine;
+		}
+		return new SecureMessagingEngine(suite);
+	}
+
+	/**
+	 * Gives the engine back to the pool. It must not be used afterwards.
+	 */
+	void release() {
+		// Forget the session, the next borrower initializes its own keys
+		Pool pool = POOLS[suite.ordinal()];
+		ksEnc = null;
+		ksMac = null;
+		Arrays.fill(buffer, (byte) 0);
+		Arrays.fill(block, (byte) 0);
+		try {
+			// Overwrite the key schedules of the session keys
+			encryptCipher.init(Cipher.ENCRYPT_MODE, pool.idleKey, suite.getZeroIV());
+			decryptCipher.init(Cipher.DECRYPT_MODE, pool.idleKey, suite.getZeroIV());
+			if (ivCipher != null) {
+				ivCipher.init(Cipher.ENCRYPT_MODE, pool.idleKey);
+			}
+			mac.init(pool.idleKey);
+		} catch (GeneralSecurityException e) {
+			// The primitives may still hold the session keys
+			return;
+		}
+		if (pool.size.incrementAndGet() <= POOL_CAPACITY) {
+			pool.idle.offer(this);
+		} else {
+			pool.size.decrementAndGet();
+		}
+	}
+
+	CipherSuite getCipherSuite() {
+		return suite;
+	}
+
+	/**
+	 * Initializes the primitives with the session keys, unless they already
+	 * are. As the keys of a session never change, and doFinal resets to the
+	 * initialized state, this only has to be done once per session, unless
+	 * the suite uses a different IV for each message.
+	 */
+	SecureMessagingEngine init(SecretKey ksEnc, SecretKey ksMac)
+	throws GeneralSecurityException {
+		if (this.ksEnc != ksEnc) {
+			this.ksEnc = null;
+			encryptCipher.init(Cipher.ENCRYPT_MODE, ksEnc, suite.getZeroIV());
+			decryptCipher.init(Cipher.DECRYPT_MODE, ksEnc, suite.getZeroIV());
+			if (ivCipher != null) {
+				ivCipher.init(Cipher.ENCRYPT_MODE, ksEnc);
+			}
+			this.ksEnc = ksEnc;
+		}
+		if (this.ksMac != ksMac) {
+			this.ksMac = null;
+			mac.init(ksMac);
+			this.ksMac = ksMac;
+		}
+		return this;
+	}
+
+	/**
+	 * Does the actual encoding of a command apdu.
+	 * Based on Section E.3 of ICAO-TR-PKI, especially the examples.
+	 *
+	 * The protected data objects are assembled in place in a reusable
+	 * buffer: the plaintext is padded and encrypted where the ciphertext of
+	 * DO'85/87 goes, and the MAC is computed over the data objects without
+	 * copying them into a separate MAC input.
+	 *
+	 * @param cAcc the command apdu.
+	 * @param ssc the send sequence counter for the command.
+	 * @param extended whether the card supports extended length apdus.
+	 *
+	 * @return the wrapped command apdu.
+	 */
+	CommandAPDU wrap(CommandAPDU cAcc, long ssc, boolean extended)
+	throws GeneralSecurityException {
+		int lc = cAcc.getNc();
+		int le = extended ? cAcc.getNe() : Math.min(cAcc.getNe(), 256);
+
+		byte cla = (byte) (cAcc.getCLA() | (byte) 0x0C);
+		byte ins = (byte) cAcc.getINS();
+		byte p1 = (byte) cAcc.getP1();
+		byte p2 = (byte) cAcc.getP2();
+
+		boolean hasDO85 = (ins == ISO7816.INS_READ_BINARY2);
+
+		int paddedLength = lc > 0 ? getPaddedLength(lc) : 0;
+		int valueLength = paddedLength + (hasDO85 ? 0 : 1);
+		int do8587Length = lc > 0 ? 1 + getLengthLength(valueLength) + valueLength : 0;
+		int do97Length = le > 0 ? (le > 256 ? 4 : 3) : 0;
+		int length = do8587Length + do97Length + 2 + MAC_LENGTH;
+		if (length > 0xFFFF) {
+			throw new IllegalArgumentException("Command APDU too long for secure messaging");
+		}
+		byte[] out = buffer(length);
+
+		int offset = 0;
+		if (lc > 0) {
+			out[offset++] = hasDO85 ? (byte) 0x85 : (byte) 0x87;
+			offset = writeLength(out, offset, valueLength);
+			if (!hasDO85) {
+				out[offset++] = 0x01;
+			}
+			byte[] data = cAcc.getData();
+			System.arraycopy(data, 0, out, offset, lc);
+			System.arraycopy(PADDING, 0, out, offset + lc, paddedLength - lc);
+			initIV(encryptCipher, Cipher.ENCRYPT_MODE, ssc);
+			encryptCipher.doFinal(out, offset, paddedLength, out, offset);
+			offset += paddedLength;
+		}
+
+		if (le > 256) {
+			out[offset++] = (byte) 0x97;
+			out[offset++] = (byte) 0x02;
+			out[offset++] = (byte) (le >> 8);
+			out[offset++] = (byte) le;
+		} else if (le > 0) {
+			out[offset++] = (byte) 0x97;
+			out[offset++] = (byte) 0x01;
+			out[offset++] = (byte) le;
+		}
+
+		/* Compute cryptographic checksum over pad(ssc || pad(header) || DO'85/87 || DO'97) */
+		updateMacHeader(ssc, cla, ins, p1, p2);
+		mac.update(out, 0, offset);
+		finishCommandMac(offset);
+
+		out[offset++] = (byte) 0x8E;
+		out[offset++] = (byte) MAC_LENGTH;
+		System.arraycopy(block, 0, out, offset, MAC_LENGTH);
+
+		/* Construct protected apdu... */
+		return new CommandAPDU(cla, ins, p1, p2, out, 0, length, getProtectedNe(le, extended));
+	}
+
+	/**
+	 * Wraps the command apdu between the position and limit of
+	 * <code>in</code> into <code>out</code>, in the same way as
+	 * {@link #wrap(CommandAPDU, long, boolean)}. The data is encrypted from the input
+	 * straight into the output, and the MAC is computed over the output.
+	 * Both positions are advanced.
+	 *
+	 * @return the length of the wrapped command apdu.
+	 * @throws BufferOverflowException
+	 *             when <code>out</code> cannot hold the wrapped apdu, before
+	 *             anything is written.
+	 */
+	int wrap(ByteBuffer in, ByteBuffer out, long ssc, boolean extended)
+	throws GeneralSecurityException {
+		int start = in.position();
+		int n = in.remaining();
+		if (n < 4) {
+			throw new IllegalArgumentException("Invalid command APDU");
+		}
+
+		/* Parse the case of the apdu (ISO 7816-4 5.1)... */
+		int lc = 0, le = 0, dataStart = start + 4;
+		if (n == 5) {
+			le = in.get(start + 4) & 0xFF;
+			le = le == 0 ? 256 : le;
+		} else if (n > 5 && in.get(start + 4) != 0) {
+			lc = in.get(start + 4) & 0xFF;
+			dataStart = start + 5;
+			if (n == 6 + lc) {
+				le = in.get(start + 5 + lc) & 0xFF;
+				le = le == 0 ? 256 : le;
+			} else if (n != 5 + lc) {
+				throw new IllegalArgumentException("Invalid command APDU");
+			}
+		} else if (n > 5) {
+			if (n < 7) {
+				throw new IllegalArgumentException("Invalid command APDU");
+			}
+			int l = getShort(in, start + 5);
+			if (n == 7) {
+				le = l == 0 ? 65536 : l;
+			} else {
+				lc = l;
+				dataStart = start + 7;
+				if (n == 9 + lc) {
+					le = getShort(in, start + 7 + lc);
+					le = le == 0 ? 65536 : le;
+				} else if (lc == 0 || n != 7 + lc) {
+					throw new IllegalArgumentException("Invalid command APDU");
+				}
+			}
+		}
+
+		if (!extended) {
+			le = Math.min(le, 256);
+		}
+
+		byte cla = (byte) (in.get(start) | (byte) 0x0C);
+		byte ins = in.get(start + 1);
+		byte p1 = in.get(start + 2);
+		byte p2 = in.get(start + 3);
+
+		boolean hasDO85 = (ins == ISO7816.INS_READ_BINARY2);
+
+		int paddedLength = lc > 0 ? getPaddedLength(lc) : 0;
+		int valueLength = paddedLength + (hasDO85 ? 0 : 1);
+		int do8587Length = lc > 0 ? 1 + getLengthLength(valueLength) + valueLength : 0;
+		int do97Length = le > 0 ? (le > 256 ? 4 : 3) : 0;
+		int length = do8587Length + do97Length + 2 + MAC_LENGTH;
+		if (length > 0xFFFF) {
+			throw new IllegalArgumentException("Command APDU too long for secure messaging");
+		}
+
+		/* Encoded as the protected CommandAPDU would be */
+		int ne = getProtectedNe(le, extended);
+		boolean extendedApdu = length > 0xFF || ne > 256;
+		int total = 4 + (extendedApdu ? 3 + length + 2 : 1 + length + 1);
+		if (out.remaining() < total) {
+			throw new BufferOverflowException();
+		}
+
+		out.put(cla).put(ins).put(p1).put(p2);
+		if (extendedApdu) {
+			out.put((byte) 0).put((byte) (length >> 8));
+		}
+		out.put((byte) length);
+
+		int doStart = out.position();
+		if (lc > 0) {
+			out.put(hasDO85 ? (byte) 0x85 : (byte) 0x87);
+			if (valueLength >= 0x80) {
+				if (valueLength > 0xFF) {
+					out.put((byte) 0x82).put((byte) (valueLength >> 8));
+				} else {
+					out.put((byte) 0x81);
+				}
+			}
+			out.put((byte) valueLength);
+			if (!hasDO85) {
+				out.put((byte) 0x01);
+			}
+			ByteBuffer data = in.duplicate();
+			data.limit(dataStart + lc).position(dataStart);
+			initIV(encryptCipher, Cipher.ENCRYPT_MODE, ssc);
+			encryptCipher.update(data, out);
+			encryptCipher.doFinal(ByteBuffer.wrap(PADDING, 0, paddedLength - lc), out);
+		}
+
+		if (le > 256) {
+			out.put((byte) 0x97).put((byte) 0x02).put((byte) (le >> 8)).put((byte) le);
+		} else if (le > 0) {
+			out.put((byte) 0x97).put((byte) 0x01).put((byte) le);
+		}
+
+		/* Compute cryptographic checksum over pad(ssc || pad(header) || DO'85/87 || DO'97) */
+		ByteBuffer dos = out.duplicate();
+		dos.limit(out.position()).position(doStart);
+		updateMacHeader(ssc, cla, ins, p1, p2);
+		mac.update(dos);
+		finishCommandMac(out.position() - doStart);
+
+		out.put((byte) 0x8E).put((byte) MAC_LENGTH).put(block, 0, MAC_LENGTH);
+		if (extendedApdu) {
+			// 65536 is encoded as 0000
+			out.put((byte) (ne >> 8)).put((byte) ne);
+		} else {
+			out.put((byte) 0x00);
+		}
+		in.position(in.limit());
+		return total;
+	}
+
+	/**
+	 * Does the actual decoding of a response apdu. Based on Section E.3 of
+	 * TR-PKI, especially the examples.
+	 * 
+	 * @param rapdu
+	 *            buffer containing the apdu data.
+	 * @param ssc
+	 *            the send sequence counter for the response.
+	 * 
+	 * @return a byte array containing the unwrapped apdu buffer.
+	 */
+	byte[] unwrap(byte[] rapdu, long ssc)
+	throws GeneralSecurityException {
+		ByteBuffer in = ByteBuffer.wrap(rapdu);
+		parseResponse(in);
+		checkResponse(in, ssc);
+
+		/* Decrypt and unpad the data in the reusable buffer... */
+		byte[] data = buffer(dataLength);
+		if (dataLength > 0) {
+			initIV(decryptCipher, Cipher.DECRYPT_MODE, ssc);
+			decryptCipher.doFinal(rapdu, dataOffset, dataLength, data, 0);
+		}
+		int i = dataLength - 1;
+		while (i >= 0 && data[i] == 0x00) {
+			i--;
+		}
+		if (dataLength > 0 && (i < 0 || (data[i] & 0xFF) != 0x80)) {
+			throw new IllegalStateException("unpad expected constant 0x80");
+		}
+		int plainLength = Math.max(i, 0);
+
+		byte[] out = new byte[plainLength + 2];
+		System.arraycopy(data, 0, out, 0, plainLength);
+		out[plainLength] = (byte) ((sw & 0xFF00) >> 8);
+		out[plainLength + 1] = (byte) (sw & 0x00FF);
+		return out;
+	}
+
+	/**
+	 * Unwraps the response apdu between the position and limit of
+	 * <code>in</code> into <code>out</code>, in the same way as
+	 * {@link #unwrap(byte[], long)}. The data is decrypted from the input
+	 * straight into the output, so <code>out</code> needs room for the
+	 * encrypted data and the status word. Both positions are advanced.
+	 *
+	 * @return the length of the unwrapped response apdu.
+	 */
+	int unwrap(ByteBuffer in, ByteBuffer out, long ssc)
+	throws GeneralSecurityException {
+		parseResponse(in);
+		checkResponse(in, ssc);
+		if (out.remaining() < dataLength + 2) {
+			throw new BufferOverflowException();
+		}
+
+		int start = out.position();
+		if (dataLength > 0) {
+			ByteBuffer data = in.duplicate();
+			data.limit(dataOffset + dataLength).position(dataOffset);
+			initIV(decryptCipher, Cipher.DECRYPT_MODE, ssc);
+			decryptCipher.doFinal(data, out);
+		}
+		int i = out.position() - 1;
+		while (i >= start && out.get(i) == 0x00) {
+			i--;
+		}
+		if (dataLength > 0 && (i < start || (out.get(i) & 0xFF) != 0x80)) {
+			out.position(start);
+			throw new IllegalStateException("unpad expected constant 0x80");
+		}
+		out.position(Math.max(i, start));
+		out.put((byte) ((sw & 0xFF00) >> 8)).put((byte) (sw & 0x00FF));
+		in.position(in.limit());
+		return out.position() - start;
+	}
+
+	/**
+	 * Finds the data objects of the response apdu between the position and
+	 * limit of <code>in</code>, up to DO'8E.
+	 */
+	private void parseResponse(ByteBuffer in) {
+		dataOffset = 0;
+		dataLength = 0;
+		ccOffset = -1;
+		sw = 0;
+		int offset = in.position();
+		int end = in.limit();
+		while (ccOffset < 0) {
+			if (offset + 2 > end) {
+				throw new IllegalStateException("Response APDU ends before DO'8E");
+			}
+			byte tag = in.get(offset++);
+			int length = in.get(offset++) & 0xFF;
+			if ((length & 0x80) == 0x80) {
+				/* Long form */
+				int lengthBytesCount = length & 0x7F;
+				if (lengthBytesCount > 3 || offset + lengthBytesCount > end) {
+					throw new IllegalStateException("Invalid length in response APDU");
+				}
+				length = 0;
+				for (int i = 0; i < lengthBytesCount; i++) {
+					length = (length << 8) | (in.get(offset++) & 0xFF);
+				}
+			}
+			if (offset + length > end) {
+				throw new IllegalStateException("Response APDU ends within data object");
+			}
+			switch (tag) {
+			case (byte) 0x87:
+				if (length < 1 || in.get(offset) != 0x01) {
+					throw new IllegalStateException("DO'87 expected 0x01 marker");
+				}
+				dataOffset = offset + 1;
+				dataLength = length - 1;
+			break;
+			case (byte) 0x85:
+				dataOffset = offset;
+				dataLength = length;
+			break;
+			case (byte) 0x99:
+				if (length != 2) {
+					throw new IllegalStateException("DO'99 wrong length");
+				}
+				sw = (short) getShort(in, offset);
+			break;
+			case (byte) 0x8E:
+				if (length != MAC_LENGTH) {
+					throw new IllegalStateException("DO'8E wrong length");
+				}
+				ccOffset = offset;
+			break;
+			}
+			offset += length;
+		}
+	}
+
+	/**
+	 * Checks the MAC of the parsed response, and whether the encrypted data
+	 * can be decrypted.
+	 */
+	private void checkResponse(ByteBuffer in, long ssc)
+	throws GeneralSecurityException {
+		if (!checkMac(in, ssc)) {
+			throw new IllegalStateException("Invalid MAC");
+		}
+		if (dataLength % blockSize != 0) {
+			throw new IllegalStateException("DO'87 wrong length");
+		}
+	}
+
+	/**
+	 * Checks the MAC over pad(ssc || rapdu[0 .. DO'8E]), where the data
+	 * objects are followed by the 10 bytes of DO'8E and the status word.
+	 */
+	private boolean checkMac(ByteBuffer in, long ssc)
+	throws GeneralSecurityException {
+		int length = in.remaining() - 2 - MAC_LENGTH - 2;
+		if (length < 0) {
+			return false;
+		}
+		writeSSC(block, ssc);
+		mac.update(block, 0, blockSize);
+		if (in.hasArray()) {
+			mac.update(in.array(), in.arrayOffset() + in.position(), length);
+		} else {
+			ByteBuffer dos = in.duplicate();
+			dos.limit(dos.position() + length);
+			mac.update(dos);
+		}
+		mac.update(PADDING, 0, getPaddedLength(blockSize + length) - (blockSize + length));
+		mac.doFinal(block, 0);
+
+		int diff = 0;
+		for (int i = 0; i < MAC_LENGTH; i++) {
+			diff |= block[i] ^ in.get(ccOffset + i);
+		}
+		return diff == 0;
+	}
+
+	/**
+	 * Initializes the cipher with the IV of the message with the given send
+	 * sequence counter, if the suite does not use the zero IV.
+	 */
+	private void initIV(Cipher cipher, int mode, long ssc)
+	throws GeneralSecurityException {
+		if (ivCipher != null) {
+			cipher.init(mode, ksEnc, suite.getIV(ivCipher, ssc));
+		}
+	}
+
+	/**
+	 * Starts the MAC of a command with the send sequence counter and the
+	 * padded header.
+	 */
+	private void updateMacHeader(long ssc, byte cla, byte ins, byte p1, byte p2) {
+		writeSSC(block, ssc);
+		block[blockSize] = cla;
+		block[blockSize + 1] = ins;
+		block[blockSize + 2] = p1;
+		block[blockSize + 3] = p2;
+		System.arraycopy(PADDING, 0, block, blockSize + 4, blockSize - 4);
+		mac.update(block, 0, 2 * blockSize);
+	}
+
+	/**
+	 * Pads the MAC input after <code>length</code> bytes of data objects,
+	 * and computes the MAC into the start of the block.
+	 */
+	private void finishCommandMac(int length) throws GeneralSecurityException {
+		mac.update(PADDING, 0, getPaddedLength(2 * blockSize + length) - (2 * blockSize + length));
+		mac.doFinal(block, 0);
+	}
+
+	/**
+	 * Gets Ne of the protected command apdu: large enough for the protected
+	 * response to a command expecting <code>le</code> bytes. That is the
+	 * maximum of a short apdu, unless the response needs an extended one.
+	 */
+	private int getProtectedNe(int le, boolean extended) {
+		if (!extended) {
+			return 256;
+		}
+		int length = 4 + 2 + MAC_LENGTH;
+		if (le > 0) {
+			int valueLength = getPaddedLength(le) + 1;
+			length += 1 + getLengthLength(valueLength) + valueLength;
+		}
+		return length > 256 ? 65536 : 256;
+	}
+
+	/**
+	 * Gets the reusable buffer, making sure it can hold at least
+	 * <code>length</code> bytes.
+	 */
+	private byte[] buffer(int length) {
+		if (buffer.length < length) {
+			buffer = new byte[Math.max(length, 256)];
+		}
+		return buffer;
+	}
+
+	/**
+	 * @return the length of <code>length</code> bytes padded according to
+	 *         ISO9797-1 padding method 2 to the block size of the suite.
+	 */
+	private int getPaddedLength(int length) {
+		return (length / blockSize + 1) * blockSize;
+	}
+
+	/**
+	 * Writes the send sequence counter as a block for the MAC input: for
+	 * 16-byte blocks the counter is prefixed with zeros.
+	 */
+	private void writeSSC(byte[] out, long ssc) {
+		for (int i = 0; i < blockSize - 8; i++) {
+			out[i] = 0;
+		}
+		writeLong(out, blockSize - 8, ssc);
+	}
+
+	private static int getShort(ByteBuffer in, int offset) {
+		return ((in.get(offset) & 0xFF) << 8) | (in.get(offset + 1) & 0xFF);
+	}
+
+	private static int getLengthLength(int length) {
+		return length < 0x80 ? 1 : (length <= 0xFF ? 2 : 3);
+	}
+
+	private static int writeLength(byte[] out, int offset, int length) {
+		if (length >= 0x80) {
+			if (length > 0xFF) {
+				out[offset++] = (byte) 0x82;
+				out[offset++] = (byte) (length >> 8);
+			} else {
+				out[offset++] = (byte) 0x81;
+			}
+		}
+		out[offset++] = (byte) length;
+		return offset;
+	}
+
+	private static void writeLong(byte[] out, int offset, long value) {
+		for (int i = 7; i >= 0; i--) {
+			out[offset + i] = (byte) value;
+			value >>>= 8;
+		}
+	}
+
+	/**
+	 * The idle engines of a suite. The size is kept separately, as counting
+	 * the queue is not constant time.
+	 */
+	private static final class Pool {
+		final ConcurrentLinkedQueue<SecureMessagingEngine> idle =
+				new ConcurrentLinkedQueue<SecureMessagingEngine>();
+		final AtomicInteger size = new AtomicInteger();
+		/* Initializes the primitives of idle engines */
+		final SecretKey idleKey;
+
+		Pool(CipherSuite suite) {
+			byte[] key = new byte[suite == CipherSuite.DESEDE ? 24 : 16];
+			new SecureRandom().nextBytes(key);
+			idleKey = suite.restoreKey(key);
+		}
+	}
+}
@@ -22,35 +22,33 @@
 
 package org.irmacard.credentials.util;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.crypto.Cipher;
-import javax.crypto.Mac;
 import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.GCMParameterSpec;
 
 import net.sf.scuba.smartcards.APDUWrapper;
 import net.sf.scuba.smartcards.CommandAPDU;
-import net.sf.scuba.smartcards.ISO7816;
 import net.sf.scuba.smartcards.ProtocolCommand;
 import net.sf.scuba.smartcards.ProtocolCommands;
 import net.sf.scuba.smartcards.ProtocolResponse;
 import net.sf.scuba.smartcards.ProtocolResponses;
 import net.sf.scuba.smartcards.ResponseAPDU;
-import net.sf.scuba.tlv.TLVUtil;
 import net.sf.scuba.util.Hex;
 
-/*
- * TODO: Can we use TLVInputStream instead of those readDOXX methods? -- MO
- */
-
 /**
  * Secure messaging wrapper for apdus. Based on Section E.3 of ICAO-TR-PKI.
  *
@@ -62,20 +60,37 @@ import net.sf.scuba.util.Hex;
  * 
  * @version $Revision: 1370 $
  */
-public class SecureMessagingWrapper implements APDUWrapper, Serializable {
-
-	private static final String ALGORITHM = "3DES";
+public class SecureMessagingWrapper implements APDUWrapper, Serializable, AutoCloseable {
 
 	private static final long serialVersionUID = -2859033943345961793L;
 
-	private static final IvParameterSpec ZERO_IV_PARAM_SPEC = new IvParameterSpec(
-			ALGORITHM.equalsIgnoreCase("AES") ? new byte[16] : new byte[8]);
+	/** Version of the format of {@link #exportState(SecretKey)} */
+	private static final byte STATE_VERSION = 1;
+	private static final byte STATE_ENCRYPTED = 0x01;
+	private static final byte STATE_EXTENDED_LENGTH = 0x02;
+	private static final String STATE_CIPHER = "AES/GCM/NoPadding";
+	private static final int STATE_IV_LENGTH = 12;
+	private static final int STATE_TAG_LENGTH = 128;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/** Minimum number of responses unwrapped by one parallel task */
+	private static final int PARALLEL_THRESHOLD = 4;
 
 	private SecretKey ksEnc, ksMac;
-	private transient Cipher cipher;
-	private transient Mac mac;
+	private CipherSuite suite;
+
+	/** Borrowed from the pool, see {@link #engine()} */
+	private transient SecureMessagingEngine engine;
 	private long ssc;
 
+	/** Whether the card supports extended length apdus */
+	private boolean extendedLength;
+
+	/** End of the counters handed out by prewrapAsync, if any */
+	private transient long reserved;
+	private transient boolean reserving;
+
 	/**
 	 * Constructs a secure messaging wrapper based on the secure messaging
 	 * session keys. The initial value of the send sequence counter is set to
@@ -113,20 +128,97 @@ public class SecureMessagingWrapper implements APDUWrapper, Serializable {
 	 *             "ISO9797Alg3Mac" Mac).
 	 */
 	public SecureMessagingWrapper(SecretKey ksEnc, SecretKey ksMac, long ssc)
+	throws GeneralSecurityException {
+		this(ksEnc, ksMac, ssc, CipherSuite.DESEDE);
+	}
+
+	/**
+	 * Constructs a secure messaging wrapper based on the secure messaging
+	 * session keys, the initial value of the send sequence counter and the
+	 * cipher suite negotiated with the card.
+	 * 
+	 * @param ksEnc
+	 *            the session key for encryption
+	 * @param ksMac
+	 *            the session key for macs
+	 * @param ssc
+	 *            the initial value of the send sequence counter
+	 * @param suite
+	 *            the cipher suite of the session
+	 * 
+	 * @throws GeneralSecurityException
+	 *             when the available JCE providers cannot provide the
+	 *             cryptographic primitives of the suite.
+	 */
+	public SecureMessagingWrapper(SecretKey ksEnc, SecretKey ksMac, long ssc, CipherSuite suite)
 	throws GeneralSecurityException {
 		this.ksEnc = ksEnc;
 		this.ksMac = ksMac;
 		this.ssc = ssc;
+		this.suite = suite;
 
-		if (ALGORITHM.equalsIgnoreCase("AES")) {
-			cipher = Cipher.getInstance("AES/CBC/NoPadding");
-			mac = Mac.getInstance("AESCMAC");
-		} else {
-			cipher = Cipher.getInstance("DESede/CBC/NoPadding");
-			mac = Mac.getInstance("DESEDEMAC64");
+		engine = SecureMessagingEngine.acquire(suite).init(ksEnc, ksMac);
+	}
+
+	private void readObject(ObjectInputStream in)
+	throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		if (suite == null) {
+			// Serialized before suites were negotiated
+			suite = CipherSuite.DESEDE;
 		}
 	}
 
+	/**
+	 * Gets the primitives of the session, borrowing them from the pool if
+	 * this wrapper was deserialized or closed since.
+	 */
+	private SecureMessagingEngine engine() throws GeneralSecurityException {
+		if (engine == null) {
+			engine = SecureMessagingEngine.acquire(suite);
+		}
+		return engine.init(ksEnc, ksMac);
+	}
+
+	/**
+	 * Gives the cryptographic primitives of this wrapper back to the pool,
+	 * so that a next session can use them without provider lookups. The
+	 * wrapper remains usable, and borrows them again when needed.
+	 */
+	@Override
+	public void close() {
+		if (engine != null) {
+			engine.release();
+			engine = null;
+		}
+	}
+
+	/**
+	 * Gets the cipher suite of the secure messaging session.
+	 * 
+	 * @return the cipher suite.
+	 */
+	public CipherSuite getCipherSuite() {
+		return suite;
+	}
+
+	/**
+	 * Sets whether the card supports extended length apdus, see
+	 * {@link CardAuthenticationService#supportsExtendedLength(byte[])}. If
+	 * so, commands can expect more than 256 bytes, which DO'97 then encodes
+	 * in two bytes, and a protected command expects an extended response when
+	 * the protected response does not fit in a short one. Otherwise the
+	 * expected length is limited to 256 bytes. Long command data is sent in an
+	 * extended apdu either way.
+	 */
+	public void setExtendedLength(boolean extendedLength) {
+		this.extendedLength = extendedLength;
+	}
+
+	public boolean isExtendedLength() {
+		return extendedLength;
+	}
+
 	/**
 	 * Gets the current value of the send sequence counter.
 	 * 
@@ -136,6 +228,146 @@ public class SecureMessagingWrapper implements APDUWrapper, Serializable {
 		return ssc;
 	}
 
+	/**
+	 * Exports the state of the secure messaging session, so that it can be
+	 * resumed elsewhere using {@link #importState(byte[], SecretKey)}, for
+	 * instance by another verifier. The state consists of the cipher suite,
+	 * the send sequence counter and the session keys, in a compact versioned
+	 * format, with whether extended length apdus are used as a flag:
+	 * 
+	 * <pre>
+	 * version (1) || flags (1) || [iv (12)] || body
+	 * body = suite (1) || ssc (8) || len (1) || ksEnc || len (1) || ksMac
+	 * </pre>
+	 * 
+	 * When a host key is given the body is encrypted and authenticated using
+	 * AES/GCM, with the version and flags as additional data. Otherwise the
+	 * caller must protect the state, as it contains the session keys.
+	 * 
+	 * The session should not be used here after exporting it, as the card
+	 * only accepts each send sequence counter once.
+	 * 
+	 * @param hostKey
+	 *            AES key to encrypt the state with, or null.
+	 * @return the state.
+	 * @throws GeneralSecurityException
+	 *             when the state cannot be encrypted.
+	 * @throws IllegalStateException
+	 *             when the session keys cannot be exported.
+	 */
+	public byte[] exportState(SecretKey hostKey) throws GeneralSecurityException {
+		byte[] enc = ksEnc.getEncoded();
+		byte[] mac = ksMac.getEncoded();
+		if (enc == null || mac == null || enc.length > 0xFF || mac.length > 0xFF) {
+			throw new IllegalStateException("Session keys cannot be exported");
+		}
+
+		ByteBuffer body = ByteBuffer.allocate(1 + 8 + 1 + enc.length + 1 + mac.length);
+		body.put((byte) suite.getIdentifier());
+		body.putLong(ssc);
+		body.put((byte) enc.length).put(enc);
+		body.put((byte) mac.length).put(mac);
+		Arrays.fill(enc, (byte) 0);
+		Arrays.fill(mac, (byte) 0);
+		byte[] plain = body.array();
+
+		byte flags = extendedLength ? STATE_EXTENDED_LENGTH : 0;
+		if (hostKey == null) {
+			byte[] out = new byte[2 + plain.length];
+			out[0] = STATE_VERSION;
+			out[1] = flags;
+			System.arraycopy(plain, 0, out, 2, plain.length);
+			Arrays.fill(plain, (byte) 0);
+			return out;
+		}
+
+		byte[] header = new byte[] { STATE_VERSION, (byte) (flags | STATE_ENCRYPTED) };
+		byte[] iv = new byte[STATE_IV_LENGTH];
+		RANDOM.nextBytes(iv);
+		Cipher cipher = Cipher.getInstance(STATE_CIPHER);
+		cipher.init(Cipher.ENCRYPT_MODE, hostKey, new GCMParameterSpec(STATE_TAG_LENGTH, iv));
+		cipher.updateAAD(header);
+
+		byte[] out = new byte[2 + STATE_IV_LENGTH + cipher.getOutputSize(plain.length)];
+		System.arraycopy(header, 0, out, 0, 2);
+		System.arraycopy(iv, 0, out, 2, STATE_IV_LENGTH);
+		cipher.doFinal(plain, 0, plain.length, out, 2 + STATE_IV_LENGTH);
+		Arrays.fill(plain, (byte) 0);
+		return out;
+	}
+
+	/**
+	 * Resumes a secure messaging session exported using
+	 * {@link #exportState(SecretKey)}.
+	 * 
+	 * @param state
+	 *            the exported state.
+	 * @param hostKey
+	 *            the key the state was encrypted with, or null if it was not
+	 *            encrypted.
+	 * @return a wrapper continuing the session.
+	 * @throws GeneralSecurityException
+	 *             when the state cannot be decrypted, for instance because it
+	 *             was modified or the host key is wrong, or the primitives of
+	 *             the suite are not available.
+	 * @throws IllegalArgumentException
+	 *             when the state is malformed, of an unknown version, or not
+	 *             encrypted as expected.
+	 */
+	public static SecureMessagingWrapper importState(byte[] state, SecretKey hostKey)
+	throws GeneralSecurityException {
+		if (state == null || state.length < 2 || state[0] != STATE_VERSION
+				|| (state[1] & ~(STATE_ENCRYPTED | STATE_EXTENDED_LENGTH)) != 0) {
+			throw new IllegalArgumentException("Unsupported session state");
+		}
+		boolean encrypted = (state[1] & STATE_ENCRYPTED) != 0;
+		if (encrypted != (hostKey != null)) {
+			throw new IllegalArgumentException(encrypted
+					? "Session state is encrypted" : "Session state is not encrypted");
+		}
+
+		byte[] plain;
+		if (encrypted) {
+			if (state.length < 2 + STATE_IV_LENGTH) {
+				throw new IllegalArgumentException("Invalid session state");
+			}
+			Cipher cipher = Cipher.getInstance(STATE_CIPHER);
+			cipher.init(Cipher.DECRYPT_MODE, hostKey,
+					new GCMParameterSpec(STATE_TAG_LENGTH, state, 2, STATE_IV_LENGTH));
+			cipher.updateAAD(state, 0, 2);
+			plain = cipher.doFinal(state, 2 + STATE_IV_LENGTH, state.length - 2 - STATE_IV_LENGTH);
+		} else {
+			plain = Arrays.copyOfRange(state, 2, state.length);
+		}
+
+		try {
+			ByteBuffer body = ByteBuffer.wrap(plain);
+			CipherSuite suite = CipherSuite.forIdentifier(body.get() & 0xFF);
+			if (suite == null) {
+				throw new IllegalArgumentException("Unknown cipher suite in session state");
+			}
+			long ssc = body.getLong();
+			byte[] enc = new byte[body.get() & 0xFF];
+			body.get(enc);
+			byte[] mac = new byte[body.get() & 0xFF];
+			body.get(mac);
+			if (body.hasRemaining()) {
+				throw new IllegalArgumentException("Invalid session state");
+			}
+			SecretKey ksEnc = suite.restoreKey(enc);
+			SecretKey ksMac = suite.restoreKey(mac);
+			Arrays.fill(enc, (byte) 0);
+			Arrays.fill(mac, (byte) 0);
+			SecureMessagingWrapper wrapper = new SecureMessagingWrapper(ksEnc, ksMac, ssc, suite);
+			wrapper.setExtendedLength((state[1] & STATE_EXTENDED_LENGTH) != 0);
+			return wrapper;
+		} catch (BufferUnderflowException e) {
+			throw new IllegalArgumentException("Invalid session state");
+		} finally {
+			Arrays.fill(plain, (byte) 0);
+		}
+	}
+
 	/**
 	 * Wraps the apdu buffer <code>capdu</code> of a command apdu.
 	 * As a side effect, this method increments the internal send
@@ -147,13 +379,38 @@ public class SecureMessagingWrapper implements APDUWrapper, Serializable {
 	 */
 	public CommandAPDU wrap(CommandAPDU commandAPDU) {
 		try {
-			return wrapCommandAPDU(commandAPDU);
+			ssc++;
+			return engine().wrap(commandAPDU, ssc, extendedLength);
 		} catch (GeneralSecurityException gse) {
 			gse.printStackTrace();
 			throw new IllegalStateException(gse.toString());
-		} catch (IOException ioe) {
-			ioe.printStackTrace();
-			throw new IllegalStateException(ioe.toString());
+		}
+	}
+
+	/**
+	 * Wraps the command apdu between the position and limit of
+	 * <code>in</code>, and writes the protected command apdu to
+	 * <code>out</code>, without copying to intermediate arrays. The buffers
+	 * may be heap or direct buffers, but must not overlap. The positions of
+	 * both buffers are advanced. As a side effect, this method increments
+	 * the internal send sequence counter maintained by this wrapper.
+	 * 
+	 * @param in
+	 *            buffer containing the command apdu.
+	 * @param out
+	 *            buffer to write the wrapped command apdu to.
+	 * @return the length of the wrapped command apdu.
+	 * @throws BufferOverflowException
+	 *             when <code>out</code> cannot hold the wrapped command apdu;
+	 *             nothing is written, and the counter is not incremented.
+	 */
+	public int wrap(ByteBuffer in, ByteBuffer out) {
+		try {
+			int length = engine().wrap(in, out, ssc + 1, extendedLength);
+			ssc++;
+			return length;
+		} catch (GeneralSecurityException gse) {
+			throw new IllegalStateException(gse);
 		}
 	}
 
@@ -181,18 +438,46 @@ public class SecureMessagingWrapper implements APDUWrapper, Serializable {
 	public ResponseAPDU unwrap(ResponseAPDU responseAPDU, int len) {
 		try {
 			byte[] rapdu =  responseAPDU.getBytes();
-			if (rapdu.length == 2) {
-				// no sense in unwrapping - card indicates SM error
-				throw new IllegalStateException("Card indicates SM error, SW = " + Hex.bytesToHexString(rapdu));
-				/* FIXME: wouldn't it be cleaner to throw a CardServiceException? */
-			}
+			checkResponse(rapdu);
 			return new ResponseAPDU(unwrapResponseAPDU(rapdu, len));
 		} catch (GeneralSecurityException gse) {
 			gse.printStackTrace();
 			throw new IllegalStateException(gse.toString());
-		} catch (IOException ioe) {
-			ioe.printStackTrace();
-			throw new IllegalStateException(ioe.toString());
+		}
+	}
+
+	/**
+	 * Unwraps the response apdu between the position and limit of
+	 * <code>in</code>, and writes the unwrapped response apdu to
+	 * <code>out</code>, without copying to intermediate arrays. The data is
+	 * decrypted directly into <code>out</code>, which therefore needs room
+	 * for the encrypted data and the status word. The buffers may be heap or
+	 * direct buffers, but must not overlap. The positions of both buffers are
+	 * advanced.
+	 * 
+	 * @param in
+	 *            buffer containing the response apdu.
+	 * @param out
+	 *            buffer to write the unwrapped response apdu to.
+	 * @return the length of the unwrapped response apdu.
+	 * @throws BufferOverflowException
+	 *             when <code>out</code> cannot hold the decrypted data.
+	 */
+	public int unwrap(ByteBuffer in, ByteBuffer out) {
+		if (in.remaining() == 2) {
+			// no sense in unwrapping - card indicates SM error
+			throw new IllegalStateException("Card indicates SM error, SW = "
+					+ Hex.bytesToHexString(new byte[] { in.get(in.position()), in.get(in.position() + 1) }));
+		}
+		// Stay in step with the ICC, see unwrapResponseAPDU
+		ssc++;
+		try {
+			if (in.remaining() < 2) {
+				throw new IllegalArgumentException("Invalid response APDU");
+			}
+			return engine().unwrap(in, out, ssc);
+		} catch (GeneralSecurityException gse) {
+			throw new IllegalStateException(gse);
 		}
 	}
 
@@ -200,108 +485,185 @@ public class SecureMessagingWrapper implements APDUWrapper, Serializable {
 		// Restore send sequence counter
 		ssc = initial_ssc;
 
-		for(ProtocolCommand c : commands) {
-			ProtocolResponse r = responses.get(c.getKey());
-			ResponseAPDU rapdu = r.getAPDU();
-			r.setAPDU(unwrap(rapdu, rapdu.getBytes().length));
-
-			// TODO(PV): Not sure whether this is needed 
-			responses.remove(c.getKey());
-			responses.put(r.getKey(), r);
-			
-			// Perform additional increment of the send sequence counter
-			// as we will decrypt the response at a later point in time.
-			ssc++;
+		try {
+			for(ProtocolCommand c : commands) {
+				ProtocolResponse r = responses.get(c.getKey());
+				ResponseAPDU rapdu = r.getAPDU();
+				r.setAPDU(unwrap(rapdu, rapdu.getBytes().length));
+
+				// TODO(PV): Not sure whether this is needed 
+				responses.remove(c.getKey());
+				responses.put(r.getKey(), r);
+
+				// Perform additional increment of the send sequence counter
+				// as we will decrypt the response at a later point in time.
+				ssc++;
+			}
+		} finally {
+			keepReserved();
 		}
 	}
 
 	/**
-	 * Does the actual encoding of a command apdu.
-	 * Based on Section E.3 of ICAO-TR-PKI, especially the examples.
-	 *
-	 * @param capdu buffer containing the apdu data. It must be large enough
-	 *             to receive the wrapped apdu.
-	 * @param len length of the apdu data.
-	 *
-	 * @return a byte array containing the wrapped apdu buffer.
-	 */
-	/*@ requires apdu != null && 4 <= len && len <= apdu.length;
+	 * Wraps the commands in parallel. The i-th command is wrapped with send
+	 * sequence counter <code>ssc + 2 * i + 1</code>, where ssc is the counter
+	 * before the call, leaving room for the responses as
+	 * {@link #wrapAsync(ProtocolCommands)} does. The result, including the
+	 * counter afterwards and the exception thrown on the first failing
+	 * command, is the same as for that method.
+	 * 
+	 * @param pool
+	 *            to wrap in, small batches are wrapped on the calling thread.
 	 */
-	private CommandAPDU wrapCommandAPDU(CommandAPDU cAcc)
-	throws GeneralSecurityException, IOException {
-		int lc = cAcc.getNc();
-		int le = cAcc.getNe();
-
-		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-
-		byte[] maskedHeader = new byte[] {(byte)(cAcc.getCLA() | (byte)0x0C), (byte)cAcc.getINS(), (byte)cAcc.getP1(), (byte)cAcc.getP2()};
-
-		byte[] paddedHeader = pad(maskedHeader);
-
-		boolean hasDO85 = ((byte)cAcc.getINS() == ISO7816.INS_READ_BINARY2);
-
-		byte[] do8587 = new byte[0];
-		/* byte[] do8E = new byte[0]; */ /* FIXME: FindBugs told me this is a dead store -- MO */
-		byte[] do97 = new byte[0];
+	public void wrapAsync(ProtocolCommands commands, ForkJoinPool pool) {
+		int n = commands.size();
+		if (n < 2 * PARALLEL_THRESHOLD) {
+			wrapAsync(commands);
+			return;
+		}
 
-		if (le > 0) {
-			bOut.reset();
-			bOut.write((byte) 0x97);
-			bOut.write((byte) 0x01);
-			bOut.write((byte) le);
-			do97 = bOut.toByteArray();
+		long initial_ssc = ssc;
+		try {
+			wrapBatch(commands, initial_ssc, pool);
+			ssc = initial_ssc + 2L * n;
+		} catch (BatchException e) {
+			// Where wrapping one by one would have stopped
+			ssc = initial_ssc + 2L * e.index + 1;
+			throw e.failure;
 		}
+	}
 
-		if (lc > 0) {
-			byte[] data = pad(cAcc.getData());
-			cipher.init(Cipher.ENCRYPT_MODE, ksEnc, ZERO_IV_PARAM_SPEC);
-			byte[] ciphertext = cipher.doFinal(data);
+	/**
+	 * Wraps the commands of a next step in the background, for instance while
+	 * the card is still processing the current step. The send sequence
+	 * counters of the commands and their responses are reserved when this
+	 * method is called, so the commands must be sent after those wrapped
+	 * before, and their responses unwrapped using
+	 * {@link #unWrapAsync(ProtocolCommands, ProtocolResponses, long)} with
+	 * the counter before this call plus one. Unwrapping the responses of the
+	 * current step in the meantime does not hand out the reserved counters
+	 * again.
+	 * 
+	 * The commands are wrapped in place, and must not be used before the
+	 * returned future completes. If wrapping fails the future completes
+	 * exceptionally, and the reserved counters are lost.
+	 * 
+	 * @param pool
+	 *            to wrap in.
+	 * @return the future of the wrapped commands.
+	 */
+	public CompletableFuture<ProtocolCommands> prewrapAsync(final ProtocolCommands commands,
+			final ForkJoinPool pool) {
+		final long initial_ssc = ssc;
+		ssc += 2L * commands.size();
+		reserved = ssc;
+		reserving = true;
+
+		final CompletableFuture<ProtocolCommands> future = new CompletableFuture<ProtocolCommands>();
+		pool.execute(new Runnable() {
+			public void run() {
+				try {
+					wrapBatch(commands, initial_ssc, pool);
+					future.complete(commands);
+				} catch (BatchException e) {
+					future.completeExceptionally(e.failure);
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			}
+		});
+		return future;
+	}
 
-			bOut.reset();
-			bOut.write(hasDO85 ? (byte) 0x85 : (byte) 0x87);
-			bOut.write(TLVUtil.getLengthAsBytes(ciphertext.length + (hasDO85 ? 0 : 1)));
-			if(!hasDO85) { bOut.write(0x01); };
-			bOut.write(ciphertext, 0, ciphertext.length);
-			do8587 = bOut.toByteArray();
+	/**
+	 * Wraps the commands in the pool using per-thread engines, without
+	 * touching the state of this wrapper. The commands before a failing one
+	 * are still replaced by their wrapped version.
+	 */
+	private void wrapBatch(ProtocolCommands commands, long initial_ssc, ForkJoinPool pool)
+	throws BatchException {
+		int n = commands.size();
+		ProtocolCommand[] batch = new ProtocolCommand[n];
+		int i = 0;
+		for (ProtocolCommand c : commands) {
+			batch[i++] = c;
 		}
+		CommandAPDU[] results = new CommandAPDU[n];
+		RuntimeException[] failures = new RuntimeException[n];
+		pool.invoke(new WrapTask(batch, results, failures, initial_ssc, 0, n));
 
-		bOut.reset();
-		bOut.write(paddedHeader, 0, paddedHeader.length);
-		bOut.write(do8587, 0, do8587.length);
-		bOut.write(do97, 0, do97.length);
-		byte[] m = bOut.toByteArray();
-
-		bOut.reset();
-		DataOutputStream dataOut = new DataOutputStream(bOut);
-		ssc++;
-		dataOut.writeLong(ssc);
-		dataOut.write(m, 0, m.length);
-		dataOut.flush();
-		byte[] n = pad(bOut.toByteArray());
+		for (i = 0; i < n; i++) {
+			if (failures[i] != null) {
+				throw new BatchException(i, failures[i]);
+			}
+			batch[i].setAPDU(results[i]);
+		}
+	}
 
-		/* Compute cryptographic checksum... */
-		mac.init(ksMac);
-		byte[] cc = mac.doFinal(n);
+	/**
+	 * Unwraps the responses to commands wrapped by
+	 * {@link #wrapAsync(ProtocolCommands)} in parallel. As the send sequence
+	 * counter of the response to the i-th command is
+	 * <code>initial_ssc + 2 * i + 1</code>, the responses can be unwrapped
+	 * independently, each thread using its own cipher and MAC. The result,
+	 * including the send sequence counter afterwards and the exception thrown
+	 * on the first failing response, is the same as for
+	 * {@link #unWrapAsync(ProtocolCommands, ProtocolResponses, long)}.
+	 * 
+	 * @param pool
+	 *            to unwrap in, small batches are unwrapped on the calling
+	 *            thread.
+	 */
+	public void unWrapAsync(ProtocolCommands commands, ProtocolResponses responses, long initial_ssc,
+			ForkJoinPool pool) {
+		int n = commands.size();
+		if (n < 2 * PARALLEL_THRESHOLD) {
+			unWrapAsync(commands, responses, initial_ssc);
+			return;
+		}
 
-		bOut.reset();
-		bOut.write((byte) 0x8E);
-		bOut.write(cc.length);
-		bOut.write(cc, 0, cc.length);
-		byte[] do8E = bOut.toByteArray();
+		ProtocolResponse[] batch = new ProtocolResponse[n];
+		int i = 0;
+		for (ProtocolCommand c : commands) {
+			batch[i++] = responses.get(c.getKey());
+		}
+		ResponseAPDU[] results = new ResponseAPDU[n];
+		RuntimeException[] failures = new RuntimeException[n];
+		pool.invoke(new UnwrapTask(batch, results, failures, initial_ssc, 0, n));
 
-		/* Construct protected apdu... */
-		bOut.reset();
-		bOut.write(do8587);
-		bOut.write(do97);
-		bOut.write(do8E);
-		byte[] data = bOut.toByteArray();
+		try {
+			for (i = 0; i < n; i++) {
+				if (failures[i] != null) {
+					// Where unwrapping one by one would have stopped, an SM
+					// error of the card does not count
+					ssc = initial_ssc + 2L * i;
+					if (batch[i].getAPDU().getBytes().length != 2) {
+						ssc++;
+					}
+					throw failures[i];
+				}
+				batch[i].setAPDU(results[i]);
+			}
+			ssc = initial_ssc + 2L * n;
+		} finally {
+			keepReserved();
+		}
+	}
 
-		return new CommandAPDU(maskedHeader[0], maskedHeader[1], maskedHeader[2], maskedHeader[3], data, 256);
+	/**
+	 * Moves the send sequence counter past the counters reserved by
+	 * prewrapAsync, which unWrapAsync would otherwise hand out again.
+	 */
+	private void keepReserved() {
+		// The counter is unsigned, so compare the distance
+		if (reserving && ssc - reserved < 0) {
+			ssc = reserved;
+		}
 	}
 
 	/**
-	 * Does the actual decoding of a response apdu. Based on Section E.3 of
-	 * TR-PKI, especially the examples.
+	 * Does the actual decoding of a response apdu, keeping the send sequence
+	 * counter in step with the ICC.
 	 * 
 	 * @param rapdu
 	 *            buffer containing the apdu data.
@@ -311,154 +673,146 @@ public class SecureMessagingWrapper implements APDUWrapper, Serializable {
 	 * @return a byte array containing the unwrapped apdu buffer.
 	 */
 	private byte[] unwrapResponseAPDU(byte[] rapdu, int len)
-	throws GeneralSecurityException, IOException {
-		long oldssc = ssc;
-		try {
-			if (rapdu == null || rapdu.length < 2 || len < 2) {
-				throw new IllegalArgumentException("Invalid response APDU");
-			}
-			cipher.init(Cipher.DECRYPT_MODE, ksEnc, ZERO_IV_PARAM_SPEC);
-			DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(rapdu));
-			byte[] data = new byte[0];
-			short sw = 0;
-			boolean finished = false;
-			byte[] cc = null;
-			while (!finished) {
-				int tag = inputStream.readByte();
-				switch (tag) {
-				case (byte) 0x87:
-					data = readDO87(inputStream, false);
-				break;
-				case (byte) 0x85:
-					data = readDO87(inputStream, true);
-				break;
-				case (byte) 0x99:
-					sw = readDO99(inputStream);
-				break;
-				case (byte) 0x8E:
-					cc = readDO8E(inputStream);
-				finished = true;
-				break;
-				}
-			}
-			if (!checkMac(rapdu, cc)) {
-				throw new IllegalStateException("Invalid MAC");
-			}
-			ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-			bOut.write(data, 0, data.length);
-			bOut.write((sw & 0xFF00) >> 8);
-			bOut.write(sw & 0x00FF);
-			return bOut.toByteArray();
-		} finally {
-			/*
-			 * If we fail to unwrap, at least make sure we have the same counter
-			 * as the ICC, so that we can continue to communicate using secure
-			 * messaging...
-			 */
-			if (ssc == oldssc) {
-				ssc++;
-			}
+	throws GeneralSecurityException {
+		/*
+		 * Even if we fail to unwrap, make sure we have the same counter as
+		 * the ICC, so that we can continue to communicate using secure
+		 * messaging...
+		 */
+		ssc++;
+		if (rapdu == null || rapdu.length < 2 || len < 2) {
+			throw new IllegalArgumentException("Invalid response APDU");
+		}
+		return engine().unwrap(rapdu, ssc);
+	}
+
+	private static void checkResponse(byte[] rapdu) {
+		if (rapdu.length == 2) {
+			// no sense in unwrapping - card indicates SM error
+			throw new IllegalStateException("Card indicates SM error, SW = " + Hex.bytesToHexString(rapdu));
+			/* FIXME: wouldn't it be cleaner to throw a CardServiceException? */
 		}
 	}
 
 	/**
-	 * The <code>0x87</code> tag has already been read.
-	 * 
-	 * @param inputStream
-	 *            inputstream to read from.
+	 * Processes the items <code>from</code> up to <code>to</code> of a batch,
+	 * splitting the range while it is large enough. Each task borrows its own
+	 * engine, and stops at its first failure, as later items are not used
+	 * anyway.
 	 */
-	private byte[] readDO87(DataInputStream inputStream, boolean do85) throws IOException,
-	GeneralSecurityException {
-		/* Read length... */
-		int length = 0;
-		int buf = inputStream.readUnsignedByte();
-		if ((buf & 0x00000080) != 0x00000080) {
-			/* Short form */
-			length = buf;
-			if(!do85) {
-				buf = inputStream.readUnsignedByte(); /* should be 0x01... */
-				if (buf != 0x01) {
-					throw new IllegalStateException(
-							"DO'87 expected 0x01 marker, found "
-							+ Hex.byteToHexString((byte) buf));
-				}
-			}
-		} else {
-			/* Long form */
-			int lengthBytesCount = buf & 0x0000007F;
-			for (int i = 0; i < lengthBytesCount; i++) {
-				length = (length << 8) | inputStream.readUnsignedByte();
+	private abstract class BatchTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		final RuntimeException[] failures;
+		final long initial_ssc;
+		final int from, to;
+
+		BatchTask(RuntimeException[] failures, long initial_ssc, int from, int to) {
+			this.failures = failures;
+			this.initial_ssc = initial_ssc;
+			this.from = from;
+			this.to = to;
+		}
+
+		abstract BatchTask split(int from, int to);
+
+		abstract void process(int i, SecureMessagingEngine engine) throws GeneralSecurityException;
+
+		@Override
+		protected void compute() {
+			if (to - from >= 2 * PARALLEL_THRESHOLD) {
+				int middle = (from + to) >>> 1;
+				invokeAll(split(from, middle), split(middle, to));
+				return;
 			}
-			if(!do85) {
-				buf = inputStream.readUnsignedByte(); /* should be 0x01... */
-				if (buf != 0x01) {
-					throw new IllegalStateException("DO'87 expected 0x01 marker");
+			SecureMessagingEngine engine = null;
+			int i = from;
+			try {
+				engine = SecureMessagingEngine.acquire(suite).init(ksEnc, ksMac);
+				for (; i < to; i++) {
+					process(i, engine);
+				}
+			} catch (GeneralSecurityException gse) {
+				failures[i] = new IllegalStateException(gse.toString());
+			} catch (RuntimeException e) {
+				failures[i] = e;
+			} finally {
+				if (engine != null) {
+					engine.release();
 				}
 			}
 		}
-		if(!do85) {
-			length--; /* takes care of the extra 0x01 marker... */
+	}
+
+	private class WrapTask extends BatchTask {
+		private static final long serialVersionUID = 1L;
+
+		private final ProtocolCommand[] batch;
+		private final CommandAPDU[] results;
+
+		WrapTask(ProtocolCommand[] batch, CommandAPDU[] results, RuntimeException[] failures,
+				long initial_ssc, int from, int to) {
+			super(failures, initial_ssc, from, to);
+			this.batch = batch;
+			this.results = results;
+		}
+
+		@Override
+		BatchTask split(int from, int to) {
+			return new WrapTask(batch, results, failures, initial_ssc, from, to);
+		}
+
+		@Override
+		void process(int i, SecureMessagingEngine engine) throws GeneralSecurityException {
+			results[i] = engine.wrap(batch[i].getAPDU(), initial_ssc + 2L * i + 1, extendedLength);
 		}
-		/* Read, decrypt, unpad the data... */
-		byte[] ciphertext = new byte[length];
-		inputStream.readFully(ciphertext);
-		byte[] paddedData = cipher.doFinal(ciphertext);
-		byte[] data = unpad(paddedData);
-		return data;
 	}
 
-	/**
-	 * The <code>0x99</code> tag has already been read.
-	 * 
-	 * @param in
-	 *            inputstream to read from.
-	 */
-	private short readDO99(DataInputStream in) throws IOException {
-		int length = in.readUnsignedByte();
-		if (length != 2) {
-			throw new IllegalStateException("DO'99 wrong length");
+	private class UnwrapTask extends BatchTask {
+		private static final long serialVersionUID = 1L;
+
+		private final ProtocolResponse[] batch;
+		private final ResponseAPDU[] results;
+
+		UnwrapTask(ProtocolResponse[] batch, ResponseAPDU[] results, RuntimeException[] failures,
+				long initial_ssc, int from, int to) {
+			super(failures, initial_ssc, from, to);
+			this.batch = batch;
+			this.results = results;
+		}
+
+		@Override
+		BatchTask split(int from, int to) {
+			return new UnwrapTask(batch, results, failures, initial_ssc, from, to);
+		}
+
+		@Override
+		void process(int i, SecureMessagingEngine engine) throws GeneralSecurityException {
+			byte[] rapdu = batch[i].getAPDU().getBytes();
+			checkResponse(rapdu);
+			if (rapdu.length < 2) {
+				throw new IllegalArgumentException("Invalid response APDU");
+			}
+			results[i] = new ResponseAPDU(engine.unwrap(rapdu, initial_ssc + 2L * i + 1));
 		}
-		byte sw1 = in.readByte();
-		byte sw2 = in.readByte();
-		return (short) (((sw1 & 0x000000FF) << 8) | (sw2 & 0x000000FF));
 	}
 
 	/**
-	 * The <code>0x8E</code> tag has already been read.
-	 * 
-	 * @param in
-	 *            inputstream to read from.
+	 * The first failure of a batch processed in parallel.
 	 */
-	private byte[] readDO8E(DataInputStream in) throws IOException,
-	GeneralSecurityException {
-		int length = in.readUnsignedByte();
-		if (length != 8) {
-			throw new IllegalStateException("DO'8E wrong length");
+	private static class BatchException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		final int index;
+		final RuntimeException failure;
+
+		BatchException(int index, RuntimeException failure) {
+			super(failure);
+			this.index = index;
+			this.failure = failure;
 		}
-		byte[] cc1 = new byte[8];
-		in.readFully(cc1);
-		return cc1;
 	}
 
-	private boolean checkMac(byte[] rapdu, byte[] cc1)
-	throws GeneralSecurityException {
-		try {
-			ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-			DataOutputStream dataOut = new DataOutputStream(bOut);
-			ssc++;
-			dataOut.writeLong(ssc);
-			byte[] paddedData = pad(rapdu, 0, rapdu.length - 2 - 8 - 2);
-			dataOut.write(paddedData, 0, paddedData.length);
-			dataOut.flush();
-			mac.init(ksMac);
-			byte[] cc2 = mac.doFinal(bOut.toByteArray());
-			dataOut.close();
-			return Arrays.equals(cc1, cc2);
-		} catch (IOException ioe) {
-			return false;
-		}
-	}
-	
 	/**
 	 * Pads the input <code>in</code> according to ISO9797-1 padding method 2.
 	 *
@@ -475,10 +829,20 @@ public class SecureMessagingWrapper implements APDUWrapper, Serializable {
 	 */
 	public static byte[] pad(/*@ non_null */ byte[] in,
 			int offset, int length) {
+		return pad(in, offset, length, 8);
+	}
+
+	/**
+	 * Pads the input according to ISO9797-1 padding method 2 to a multiple
+	 * of <code>blockSize</code>, such as the block size of a
+	 * {@link CipherSuite}.
+	 */
+	public static byte[] pad(/*@ non_null */ byte[] in,
+			int offset, int length, int blockSize) {
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		out.write(in, offset, length);
 		out.write((byte)0x80);
-		while (out.size() % 8 != 0) {
+		while (out.size() % blockSize != 0) {
 			out.write((byte)0x00);
 		}
 		return out.toByteArray();
@@ -0,0 +1,580 @@
+/**
+ * SimulatedCardService.java
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ * Copyright (C) Radboud University Nijmegen, October 2026.
+ */
+
+package org.irmacard.credentials.util;
+
+import java.io.ByteArrayOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+
+import net.sf.scuba.smartcards.CardService;
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ResponseAPDU;
+import net.sf.scuba.tlv.TLVUtil;
+
+/**
+ * In-process simulation of a card, for load testing code built on
+ * {@link CardAuthenticationService}, {@link SecureMessagingWrapper} and
+ * {@link CardHolderVerificationService} without physical cards.
+ *
+ * The simulated card implements the card side of INTERNAL AUTHENTICATE for
+ * each {@link CipherSuite}, secure messaging for every command sent with
+ * CLA 0x0C after a successful authentication, and PIN VERIFY. By default it
+ * supports extended length apdus, and says so in its ATR. All other
+ * (unwrapped) commands are passed to an {@link Application}. Latency and
+ * injected errors can be configured to model real cards and readers.
+ *
+ * Like a real card, an instance processes one command at a time.
+ */
+public class SimulatedCardService extends CardService {
+
+	private static final long serialVersionUID = 6480390318591528305L;
+
+	private static final byte[] ATR = new byte[] {
+		(byte) 0x3B, (byte) 0x80, (byte) 0x80, (byte) 0x01, (byte) 0x01 };
+
+	/** With card capabilities in the historical bytes: extended Lc and Le fields */
+	private static final byte[] ATR_EXTENDED_LENGTH = new byte[] {
+		(byte) 0x3B, (byte) 0x85, (byte) 0x80, (byte) 0x01,
+		(byte) 0x80, (byte) 0x73, (byte) 0x00, (byte) 0x00, (byte) 0x40, (byte) 0xB7 };
+
+	private static final byte INS_VERIFY = (byte) 0x20;
+	private static final byte INS_INTERNAL_AUTHENTICATE = (byte) 0x88;
+
+	private static final int SW_NO_ERROR = 0x9000;
+	private static final int SW_SM_DATA_INCORRECT = 0x6988;
+	private static final int SW_AUTH_BLOCKED = 0x6983;
+	private static final int SW_WRONG_LENGTH = 0x6700;
+	private static final int SW_INCORRECT_P1P2 = 0x6A86;
+
+	private static final int SEED_LENGTH = 128;
+	private static final int PIN_TRIES = 3;
+
+	/**
+	 * The application logic of the simulated card.
+	 */
+	public interface Application {
+		/**
+		 * Process a command that is not handled by the card itself.
+		 *
+		 * @param command the command, after removing secure messaging.
+		 * @return the response, before applying secure messaging.
+		 */
+		public ResponseAPDU process(CommandAPDU command) throws CardServiceException;
+	}
+
+	/**
+	 * Application that accepts every command and returns no data.
+	 */
+	public static final Application ACCEPT_ALL = new Application() {
+		public ResponseAPDU process(CommandAPDU command) {
+			return new ResponseAPDU(new byte[] { (byte) 0x90, 0x00 });
+		}
+	};
+
+	private final Application application;
+	private final byte[] pin;
+	private final String name;
+
+	private transient SecureRandom random;
+	private boolean open;
+
+	private int pinTries = PIN_TRIES;
+	private boolean pinVerified;
+
+	private final Set<CipherSuite> suites = EnumSet.allOf(CipherSuite.class);
+	private boolean ignoreSuite;
+
+	private SecretKey ksEnc, ksMac;
+	private CipherSuite suite;
+	private transient Cipher cipher, ivCipher;
+	private transient Mac mac;
+	private long ssc;
+
+	private volatile long latency, jitter, authenticationLatency;
+	private volatile double errorRate, failureRate;
+	private volatile int errorSW = 0x6F00;
+	private volatile boolean extendedLength = true;
+
+	/**
+	 * Constructs a simulated card that accepts every command.
+	 *
+	 * @param pin the PIN of the card
+	 */
+	public SimulatedCardService(String pin) {
+		this(pin, ACCEPT_ALL);
+	}
+
+	/**
+	 * Constructs a simulated card.
+	 *
+	 * @param pin the PIN of the card
+	 * @param application to process the commands not handled by the card
+	 */
+	public SimulatedCardService(String pin, Application application) {
+		this.pin = pin.getBytes();
+		this.application = application;
+		this.name = "Simulated card " + Integer.toHexString(System.identityHashCode(this));
+	}
+
+	/**
+	 * Sets the cipher suites the card supports for secure messaging. By
+	 * default all suites are supported.
+	 */
+	public synchronized void setCipherSuites(CipherSuite... suites) {
+		this.suites.clear();
+		this.suites.addAll(Arrays.asList(suites));
+	}
+
+	/**
+	 * Makes the card ignore the suite requested in P1 of INTERNAL
+	 * AUTHENTICATE and always use 3DES, like applets that predate the
+	 * negotiation of suites. Such a card cannot be offered AES, see
+	 * {@link CardAuthenticationService#authenticateCard(java.math.BigInteger, java.math.BigInteger, CipherSuite...)}.
+	 */
+	public synchronized void setIgnoreCipherSuite(boolean ignoreSuite) {
+		this.ignoreSuite = ignoreSuite;
+	}
+
+	/**
+	 * Sets the time the card takes to process a command.
+	 *
+	 * @param latency the fixed part of the time
+	 * @param jitter the maximum random time added to the fixed part
+	 * @param unit of the times
+	 */
+	public void setLatency(long latency, long jitter, TimeUnit unit) {
+		this.latency = unit.toNanos(latency);
+		this.jitter = unit.toNanos(jitter);
+	}
+
+	/**
+	 * Sets the additional time the card takes for INTERNAL AUTHENTICATE,
+	 * which involves a private key operation on a real card.
+	 */
+	public void setAuthenticationLatency(long latency, TimeUnit unit) {
+		this.authenticationLatency = unit.toNanos(latency);
+	}
+
+	/**
+	 * Makes the card answer a fraction of the commands with an error status
+	 * word instead of processing them. As on a real card, such an error is
+	 * never protected by secure messaging and ends the secure messaging
+	 * session.
+	 *
+	 * @param rate the fraction of the commands that fail, between 0 and 1
+	 * @param sw the status word to respond with
+	 */
+	public void setErrorRate(double rate, int sw) {
+		this.errorRate = rate;
+		this.errorSW = sw;
+	}
+
+	/**
+	 * Makes a fraction of the transmissions fail, as if the card were
+	 * removed from the reader.
+	 *
+	 * @param rate the fraction of the commands that fail, between 0 and 1
+	 */
+	public void setFailureRate(double rate) {
+		this.failureRate = rate;
+	}
+
+	/**
+	 * Sets whether the card supports extended length apdus. A card that does
+	 * not rejects extended commands, and protected responses that do not fit
+	 * in a short apdu, with 6700.
+	 */
+	public void setExtendedLength(boolean extendedLength) {
+		this.extendedLength = extendedLength;
+	}
+
+	/**
+	 * @return the number of PIN tries left.
+	 */
+	public synchronized int getPinTriesLeft() {
+		return pinTries;
+	}
+
+	public synchronized void open() throws CardServiceException {
+		open = true;
+	}
+
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	/**
+	 * Closes the session, which resets the card: secure messaging is ended
+	 * and the PIN has to be verified again.
+	 */
+	public synchronized void close() {
+		open = false;
+		reset();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public byte[] getATR() throws CardServiceException {
+		return extendedLength ? ATR_EXTENDED_LENGTH.clone() : ATR.clone();
+	}
+
+	/**
+	 * The simulated reader has no features, so PIN entry happens through
+	 * VERIFY commands.
+	 */
+	public byte[] transmitControlCommand(int controlCode, byte[] command)
+	throws CardServiceException {
+		return new byte[0];
+	}
+
+	public synchronized ResponseAPDU transmit(CommandAPDU capdu)
+	throws CardServiceException {
+		if (!open) {
+			throw new CardServiceException("Card service not open");
+		}
+
+		ThreadLocalRandom rnd = ThreadLocalRandom.current();
+		long delay = latency + (jitter > 0 ? rnd.nextLong(jitter + 1) : 0);
+		if ((byte) capdu.getINS() == INS_INTERNAL_AUTHENTICATE) {
+			delay += authenticationLatency;
+		}
+		sleep(delay);
+
+		if (failureRate > 0 && rnd.nextDouble() < failureRate) {
+			reset();
+			throw new CardServiceException("Simulated card removed");
+		}
+		if (errorRate > 0 && rnd.nextDouble() < errorRate) {
+			reset();
+			return status(errorSW);
+		}
+
+		boolean secure = (capdu.getCLA() & 0x0C) == 0x0C;
+		if (!extendedLength && (capdu.getNc() > 0xFF || capdu.getNe() > 0x100)) {
+			if (secure) {
+				// The terminal counted the command, so the session is lost
+				reset();
+			}
+			return status(SW_WRONG_LENGTH);
+		}
+
+		if (secure) {
+			if (ksEnc == null) {
+				return status(SW_SM_DATA_INCORRECT);
+			}
+			try {
+				CommandAPDU command = unwrapCommand(capdu);
+				if (command == null) {
+					reset();
+					return status(SW_SM_DATA_INCORRECT);
+				}
+				ResponseAPDU response = wrapResponse(process(command));
+				if (!extendedLength && response.getBytes().length > 0x100 + 2) {
+					reset();
+					return status(SW_WRONG_LENGTH);
+				}
+				return response;
+			} catch (GeneralSecurityException e) {
+				reset();
+				throw new CardServiceException("Secure messaging failed: " + e.getMessage());
+			}
+		}
+		return process(capdu);
+	}
+
+	private ResponseAPDU process(CommandAPDU command) throws CardServiceException {
+		switch ((byte) command.getINS()) {
+		case INS_INTERNAL_AUTHENTICATE:
+			return authenticate(command);
+		case INS_VERIFY:
+			return verifyPin(command);
+		default:
+			return application.process(command);
+		}
+	}
+
+	/**
+	 * Card side of the key agreement in
+	 * {@link CardAuthenticationService#authenticateCard}.
+	 */
+	private ResponseAPDU authenticate(CommandAPDU command) throws CardServiceException {
+		CipherSuite suite = ignoreSuite
+				? CipherSuite.DESEDE : CipherSuite.forIdentifier(command.getP1());
+		if (suite == null || !suites.contains(suite)) {
+			return status(SW_INCORRECT_P1P2);
+		}
+		byte[] terminalSeed = command.getData();
+		if (terminalSeed.length != SEED_LENGTH) {
+			return status(SW_WRONG_LENGTH);
+		}
+		if (random == null) {
+			random = new SecureRandom();
+		}
+		byte[] cardSeed = new byte[SEED_LENGTH];
+		random.nextBytes(cardSeed);
+
+		try {
+			long ssc = 0;
+			for (int mode = 1; mode <= 2; mode++) {
+				byte[] hash = suite.deriveKeyMaterial(cardSeed, terminalSeed, mode);
+				if (mode == 1) {
+					ksEnc = suite.createKey(hash);
+				} else {
+					ksMac = suite.createKey(hash);
+				}
+				for (int i = 16; i < 20; i++) {
+					ssc = (ssc << 8) | (hash[i] & 0xff);
+				}
+			}
+			this.ssc = ssc;
+
+			if (suite != this.suite) {
+				cipher = Cipher.getInstance(suite.getCipherAlgorithm());
+				ivCipher = suite.createIVCipher();
+				mac = Mac.getInstance(suite.getMacAlgorithm());
+				this.suite = suite;
+			}
+			if (ivCipher != null) {
+				ivCipher.init(Cipher.ENCRYPT_MODE, ksEnc);
+			}
+		} catch (GeneralSecurityException e) {
+			reset();
+			throw new CardServiceException("Key derivation failed: " + e.getMessage());
+		}
+
+		return response(cardSeed, SW_NO_ERROR);
+	}
+
+	private ResponseAPDU verifyPin(CommandAPDU command) {
+		if (pinTries == 0) {
+			return status(SW_AUTH_BLOCKED);
+		}
+		if (MessageDigest.isEqual(pin, command.getData())) {
+			pinTries = PIN_TRIES;
+			pinVerified = true;
+			return status(SW_NO_ERROR);
+		}
+		pinTries--;
+		pinVerified = false;
+		return status(0x63C0 | pinTries);
+	}
+
+	/**
+	 * @return whether the PIN has been verified in this session.
+	 */
+	public synchronized boolean isPinVerified() {
+		return pinVerified;
+	}
+
+	/**
+	 * Removes secure messaging from a command.
+	 *
+	 * @return the plain command, or null if the command is malformed or its
+	 *         MAC is incorrect.
+	 */
+	private CommandAPDU unwrapCommand(CommandAPDU capdu) throws GeneralSecurityException {
+		byte[] data = capdu.getData();
+		byte[] plain = new byte[0];
+		int ne = 0, offset = 0, end = -1;
+
+		while (end < 0) {
+			if (offset + 2 > data.length) {
+				return null;
+			}
+			int start = offset;
+			int tag = data[offset++] & 0xff;
+			int length = data[offset++] & 0xff;
+			if ((length & 0x80) != 0) {
+				int count = length & 0x7f;
+				if (count > 2 || offset + count > data.length) {
+					return null;
+				}
+				length = 0;
+				for (int i = 0; i < count; i++) {
+					length = (length << 8) | (data[offset++] & 0xff);
+				}
+			}
+			if (offset + length > data.length) {
+				return null;
+			}
+
+			switch (tag) {
+			case 0x85:
+			case 0x87:
+				int marker = tag == 0x87 ? 1 : 0;
+				if (length <= marker || (marker == 1 && data[offset] != 0x01)) {
+					return null;
+				}
+				// The counter is incremented once the command is parsed
+				cipher.init(Cipher.DECRYPT_MODE, ksEnc, suite.getIV(ivCipher, ssc + 1));
+				try {
+					plain = SecureMessagingWrapper.unpad(
+							cipher.doFinal(data, offset + marker, length - marker));
+				} catch (IllegalStateException e) {
+					return null;
+				}
+				break;
+			case 0x97:
+				for (int i = 0; i < length; i++) {
+					ne = (ne << 8) | (data[offset + i] & 0xff);
+				}
+				if (ne == 0) {
+					ne = length == 1 ? 256 : 65536;
+				}
+				break;
+			case 0x8E:
+				end = start;
+				break;
+			default:
+				return null;
+			}
+			offset += length;
+		}
+
+		/* The checksum covers the header and all data objects before DO'8E */
+		byte[] header = new byte[] { (byte) capdu.getCLA(), (byte) capdu.getINS(),
+				(byte) capdu.getP1(), (byte) capdu.getP2() };
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		ssc++;
+		writeSSC(bOut, ssc);
+		byte[] paddedHeader = pad(header);
+		bOut.write(paddedHeader, 0, paddedHeader.length);
+		bOut.write(data, 0, end);
+		if (!MessageDigest.isEqual(mac(bOut.toByteArray()), Arrays.copyOfRange(data, end + 2, offset))) {
+			return null;
+		}
+
+		int cla = capdu.getCLA() & ~0x0C;
+		if (ne > 0) {
+			return new CommandAPDU(cla, capdu.getINS(), capdu.getP1(), capdu.getP2(), plain, ne);
+		}
+		return new CommandAPDU(cla, capdu.getINS(), capdu.getP1(), capdu.getP2(), plain);
+	}
+
+	/**
+	 * Applies secure messaging to a response, in the format read by
+	 * {@link SecureMessagingWrapper#unwrap}.
+	 */
+	private ResponseAPDU wrapResponse(ResponseAPDU rapdu) throws GeneralSecurityException {
+		byte[] data = rapdu.getData();
+		int sw = rapdu.getSW();
+
+		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
+		if (data.length > 0) {
+			cipher.init(Cipher.ENCRYPT_MODE, ksEnc, suite.getIV(ivCipher, ssc + 1));
+			byte[] ciphertext = cipher.doFinal(pad(data));
+			bOut.write(0x87);
+			byte[] length = TLVUtil.getLengthAsBytes(ciphertext.length + 1);
+			bOut.write(length, 0, length.length);
+			bOut.write(0x01);
+			bOut.write(ciphertext, 0, ciphertext.length);
+		}
+		bOut.write(0x99);
+		bOut.write(0x02);
+		bOut.write(sw >> 8);
+		bOut.write(sw);
+		byte[] body = bOut.toByteArray();
+
+		bOut.reset();
+		ssc++;
+		writeSSC(bOut, ssc);
+		bOut.write(body, 0, body.length);
+		byte[] cc = mac(bOut.toByteArray());
+
+		bOut.reset();
+		bOut.write(body, 0, body.length);
+		bOut.write(0x8E);
+		bOut.write(cc.length);
+		bOut.write(cc, 0, cc.length);
+		bOut.write(sw >> 8);
+		bOut.write(sw);
+		return new ResponseAPDU(bOut.toByteArray());
+	}
+
+	/**
+	 * Ends secure messaging and resets the PIN state, as a real card does
+	 * when it is reset or runs into a secure messaging error.
+	 */
+	private void reset() {
+		ksEnc = null;
+		ksMac = null;
+		pinVerified = false;
+	}
+
+	private static ResponseAPDU status(int sw) {
+		return response(new byte[0], sw);
+	}
+
+	private static ResponseAPDU response(byte[] data, int sw) {
+		byte[] rapdu = new byte[data.length + 2];
+		System.arraycopy(data, 0, rapdu, 0, data.length);
+		rapdu[data.length] = (byte) (sw >> 8);
+		rapdu[data.length + 1] = (byte) sw;
+		return new ResponseAPDU(rapdu);
+	}
+
+	private byte[] pad(byte[] in) {
+		return SecureMessagingWrapper.pad(in, 0, in.length, suite.getBlockSize());
+	}
+
+	/**
+	 * @return the MAC over the padded input, truncated to 8 bytes.
+	 */
+	private byte[] mac(byte[] in) throws GeneralSecurityException {
+		mac.init(ksMac);
+		return Arrays.copyOf(mac.doFinal(pad(in)), 8);
+	}
+
+	/**
+	 * Writes the send sequence counter, prefixed with zeros to a full block.
+	 */
+	private void writeSSC(ByteArrayOutputStream out, long value) {
+		for (int i = 8; i < suite.getBlockSize(); i++) {
+			out.write(0);
+		}
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			out.write((int) (value >>> shift));
+		}
+	}
+
+	private static void sleep(long nanos) throws CardServiceException {
+		if (nanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(nanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CardServiceException("Interrupted");
+			}
+		}
+	}
+}
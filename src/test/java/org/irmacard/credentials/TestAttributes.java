@@ -0,0 +1,100 @@
+package org.irmacard.credentials;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Calendar;
+import java.util.Date;
+
+import org.junit.Test;
+
+
+public class TestAttributes {
+	static final ExpiryClock day(final long day) {
+		return new ExpiryClock() {
+			public long currentDay() {
+				return day;
+			}
+		};
+	}
+
+	@Test
+	public void metadataMatchesDate() {
+		Calendar c = Calendar.getInstance();
+		c.add(Calendar.YEAR, 1);
+
+		Attributes attrs = new Attributes();
+		attrs.setExpireDate(c.getTime());
+		attrs.setCredentialID((short) 1234);
+
+		byte[] metadata = attrs.get(Attributes.META_DATA_FIELD);
+		assertEquals(Attributes.VERSION, Attributes.getVersion(metadata));
+		assertEquals(1234, Attributes.getCredentialID(metadata));
+		assertEquals(attrs.getExpiryDate().getTime(),
+				Attributes.getExpiryDay(metadata) * Attributes.EXPIRY_FACTOR);
+	}
+
+	@Test
+	public void previousMetadataLayout() {
+		Attributes attrs = new Attributes();
+		attrs.add(Attributes.META_DATA_FIELD, new byte[] { 0x3f, 0x00 });
+
+		byte[] metadata = attrs.get(Attributes.META_DATA_FIELD);
+		assertEquals(0, Attributes.getVersion(metadata));
+		assertEquals(0, Attributes.getCredentialID(metadata));
+		assertEquals(0x3f00, Attributes.getExpiryDay(metadata));
+		assertEquals(0x3f00 * Attributes.EXPIRY_FACTOR, attrs.getExpiryDate().getTime());
+	}
+
+	@Test
+	public void validity() {
+		Attributes attrs = new Attributes();
+		int expiry = attrs.getExpiryDay();
+
+		assertTrue(attrs.isValid());
+		assertTrue(attrs.isValid(day(expiry - 1)));
+		assertFalse(attrs.isValid(day(expiry)));
+		assertTrue(attrs.isValidOn(new Date(expiry * Attributes.EXPIRY_FACTOR - 1)));
+		assertFalse(attrs.isValidOn(new Date(expiry * Attributes.EXPIRY_FACTOR)));
+	}
+
+	@Test
+	public void freeze() {
+		Attributes attrs = new Attributes();
+		attrs.add("name", "value".getBytes());
+		ImmutableAttributes frozen = attrs.freeze();
+
+		attrs.setCredentialID((short) 42);
+		attrs.get("name")[0] = 'V';
+		frozen.get("name")[1] = 'A';
+
+		assertEquals(0, frozen.getCredentialID());
+		assertEquals("value", new String(frozen.get("name")));
+		assertSame(frozen, frozen.freeze());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void frozenIsImmutable() {
+		new Attributes().freeze().setExpireDate(null);
+	}
+
+	@Test
+	public void cachedNumbers() {
+		Attributes attrs = new Attributes();
+		attrs.add("name", new byte[] { (byte) 0x80, 0x01 });
+
+		BigInteger number = attrs.getBigInteger("name");
+		assertEquals(new BigInteger("8001", 16), number);
+		assertSame(number, attrs.getBigInteger("name"));
+
+		BigInteger metadata = attrs.getBigInteger(Attributes.META_DATA_FIELD);
+		attrs.setCredentialID((short) 42);
+		assertNotSame(metadata, attrs.getBigInteger(Attributes.META_DATA_FIELD));
+		assertEquals(new BigInteger(1, attrs.get(Attributes.META_DATA_FIELD)),
+				attrs.getBigInteger(Attributes.META_DATA_FIELD));
+	}
+}
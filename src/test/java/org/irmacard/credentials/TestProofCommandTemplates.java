@@ -0,0 +1,120 @@
+package org.irmacard.credentials;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ProtocolCommand;
+import net.sf.scuba.smartcards.ProtocolResponses;
+
+import org.irmacard.credentials.info.CredentialDescription;
+import org.irmacard.credentials.info.VerificationDescription;
+import org.irmacard.credentials.keys.PrivateKey;
+import org.irmacard.credentials.spec.IssueSpecification;
+import org.irmacard.credentials.spec.VerifySpecification;
+import org.irmacard.credentials.util.CardVersion;
+import org.junit.Test;
+
+
+public class TestProofCommandTemplates {
+	static final int NONCE_LENGTH = 10;
+
+	/**
+	 * Generates a command containing the nonce, encoded either as its
+	 * magnitude or using toByteArray, which adds a sign byte when the top bit
+	 * is set.
+	 */
+	static class ProofCredentials implements Credentials {
+		final boolean signed;
+		int calls;
+
+		ProofCredentials(boolean signed) {
+			this.signed = signed;
+		}
+
+		public List<ProtocolCommand> requestProofCommands(
+				VerificationDescription specification, BigInteger nonce) {
+			calls++;
+			byte[] bytes = nonce.toByteArray();
+			if (!signed && bytes.length > 1 && bytes[0] == 0) {
+				bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+			}
+			List<ProtocolCommand> commands = new ArrayList<ProtocolCommand>();
+			commands.add(new ProtocolCommand("select", "Select",
+					new CommandAPDU(0x00, 0xA4, 0x04, 0x00, new byte[] { 1, 2, 3 })));
+			commands.add(new ProtocolCommand("nonce", "Nonce",
+					new CommandAPDU(0x80, 0x30, 0x00, 0x00, bytes)));
+			return commands;
+		}
+
+		public void issue(CredentialDescription specification, PrivateKey pkey,
+				Attributes values, Date expires) {
+			throw new UnsupportedOperationException();
+		}
+
+		public IssueSpecification issueSpecification() {
+			throw new UnsupportedOperationException();
+		}
+
+		public Attributes verify(VerifySpecification specification) {
+			throw new UnsupportedOperationException();
+		}
+
+		public Attributes verifyProofResponses(VerificationDescription specification,
+				BigInteger nonce, ProtocolResponses responses) {
+			throw new UnsupportedOperationException();
+		}
+
+		public Nonce generateNonce(VerifySpecification specification) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	static BigInteger nonce(Random random, boolean topBit) {
+		byte[] bytes = new byte[NONCE_LENGTH];
+		random.nextBytes(bytes);
+		bytes[0] = (byte) (topBit ? bytes[0] | 0x80 : 1 + random.nextInt(0x7F));
+		return new BigInteger(1, bytes);
+	}
+
+	static void assertCommands(List<ProtocolCommand> expected, List<ProtocolCommand> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.get(i).getKey(), actual.get(i).getKey());
+			assertArrayEquals(expected.get(i).getAPDU().getBytes(),
+					actual.get(i).getAPDU().getBytes());
+		}
+	}
+
+	void checkNonces(ProofCredentials credentials) throws CredentialsException {
+		ProofCommandTemplates templates = new ProofCommandTemplates();
+		Random random = new Random(1);
+		for (int i = 0; i < 20; i++) {
+			BigInteger nonce = nonce(random, i % 2 == 0);
+			List<ProtocolCommand> actual = templates.requestProofCommands(
+					credentials, new CardVersion(), null, nonce);
+			assertCommands(credentials.requestProofCommands(null, nonce), actual);
+		}
+	}
+
+	@Test
+	public void unsignedNonce() throws CredentialsException {
+		ProofCredentials credentials = new ProofCredentials(false);
+		checkNonces(credentials);
+		// The two probes, and the expected commands of each request
+		assertEquals(2 + 20, credentials.calls);
+	}
+
+	@Test
+	public void signedNonce() throws CredentialsException {
+		// The layout depends on the top bit, so no template can be used
+		checkNonces(new ProofCredentials(true));
+	}
+}
@@ -0,0 +1,43 @@
+package org.irmacard.credentials;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class TestReplayFilter {
+	ReplayFilter filter() {
+		return new ReplayFilter(1, TimeUnit.HOURS, 4, 1000, 0.0001, 100);
+	}
+
+	@Test
+	public void replayedNonce() {
+		ReplayFilter filter = filter();
+		BigInteger nonce = new BigInteger("123456789abcdef0123456789abcdef", 16);
+
+		assertFalse(filter.isReplayed(nonce));
+		assertTrue(filter.checkAndRecord(nonce));
+		assertTrue(filter.isReplayed(nonce));
+		assertFalse(filter.checkAndRecord(nonce));
+		assertEquals(1, filter.getRejected());
+	}
+
+	@Test
+	public void sameLowBits() {
+		ReplayFilter filter = filter();
+		// Same length and same lowest 64 bits
+		BigInteger nonce1 = BigInteger.ONE.shiftLeft(100).add(BigInteger.valueOf(5));
+		BigInteger nonce2 = nonce1.add(BigInteger.ONE.shiftLeft(80));
+
+		assertTrue(filter.checkAndRecord(nonce1));
+		assertFalse(filter.isReplayed(nonce2));
+		assertTrue(filter.checkAndRecord(nonce2));
+		assertFalse(filter.checkAndRecord(nonce1));
+		assertFalse(filter.checkAndRecord(nonce2));
+	}
+}
@@ -0,0 +1,50 @@
+package org.irmacard.credentials;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+
+public class TestSessionStore {
+	@Test
+	public void directNonces() {
+		SessionStore store = new SessionStore(4, 1, TimeUnit.HOURS, 64);
+		BigInteger nonce = new BigInteger("fedcba9876543210", 16);
+		store.put(1, null, nonce, -2);
+
+		SessionStore.Session session = store.take(1);
+		assertNotNull(session);
+		assertEquals(nonce, session.getNonce());
+		assertEquals(-2, session.getSendSequenceCounter());
+		assertNull(store.get(1));
+	}
+
+	@Test
+	public void oversizedNonce() {
+		SessionStore store = new SessionStore(1, 1, TimeUnit.HOURS, 8);
+		store.put(1, null, BigInteger.valueOf(0x12), 1);
+
+		// A rejected nonce should neither replace the session nor use up a slot
+		for (int i = 0; i < 3; i++) {
+			try {
+				store.put(1, null, BigInteger.valueOf(0x123), 2);
+				fail("Oversized nonce accepted");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		assertEquals(BigInteger.valueOf(0x12), store.get(1).getNonce());
+		assertEquals(1, store.size());
+
+		store.put(2, null, BigInteger.valueOf(0xFF), 3);
+		assertNull(store.get(1));
+		assertEquals(BigInteger.valueOf(0xFF), store.get(2).getNonce());
+		assertEquals(3, store.get(2).getSendSequenceCounter());
+	}
+}
@@ -0,0 +1,94 @@
+package org.irmacard.credentials.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import net.sf.scuba.util.Hex;
+
+import org.junit.Test;
+
+
+public class TestCardAuthenticationService {
+	@Test
+	public void seedWithTopBitSet() {
+		// A 1024-bit seed with the most significant bit set gets a sign byte
+		byte[] expected = new byte[128];
+		Arrays.fill(expected, (byte) 0xA5);
+		BigInteger seed = new BigInteger(1, expected);
+		assertEquals(129, seed.toByteArray().length);
+
+		assertArrayEquals(expected, CardAuthenticationService.encodeSeed(seed, 128));
+	}
+
+	@Test
+	public void shortSeed() {
+		byte[] expected = new byte[128];
+		expected[126] = 0x12;
+		expected[127] = 0x34;
+
+		assertArrayEquals(expected,
+				CardAuthenticationService.encodeSeed(BigInteger.valueOf(0x1234), 128));
+	}
+
+	static boolean supportsExtendedLength(String atr) {
+		return CardAuthenticationService.supportsExtendedLength(Hex.hexStringToBytes(atr));
+	}
+
+	@Test
+	public void atrWithoutInterfaceBytes() {
+		assertFalse(CardAuthenticationService.supportsExtendedLength(null));
+		assertFalse(supportsExtendedLength("3B"));
+		// No historical bytes
+		assertFalse(supportsExtendedLength("3B00"));
+		// No interface bytes at all
+		assertTrue(supportsExtendedLength("3B058073000040"));
+		// Only TA1, no TD1
+		assertTrue(supportsExtendedLength("3B15968073000040"));
+	}
+
+	@Test
+	public void atrChainedInterfaceBytes() {
+		// TD1 announces TD2, TD2 announces nothing
+		assertTrue(supportsExtendedLength("3B8580018073000040B7"));
+		// TA1 TC1 TD1, TD1 announces TD2, TD2 announces TA3 TB3
+		assertTrue(supportsExtendedLength("3BD518FF8131FE458073000040B7"));
+		assertFalse(supportsExtendedLength("3BD518FF8131FE458073000000F7"));
+	}
+
+	@Test
+	public void atrStatusIndicator() {
+		// Category 00: the last three historical bytes are a status indicator
+		assertTrue(supportsExtendedLength("3B080073000040809000"));
+		// The card capabilities would overlap the status indicator
+		assertFalse(supportsExtendedLength("3B050073000040"));
+		// Unknown category indicator
+		assertFalse(supportsExtendedLength("3B051073000040"));
+	}
+
+	@Test
+	public void atrCardCapabilities() {
+		// Extended Lc and Le fields
+		assertTrue(supportsExtendedLength("3B058073000040"));
+		// Command chaining only
+		assertFalse(supportsExtendedLength("3B058073000080"));
+		// Card capabilities after another compact-TLV object
+		assertTrue(supportsExtendedLength("3B07803180730000C0"));
+		// Card capabilities without the third software function table
+		assertFalse(supportsExtendedLength("3B0480720000"));
+	}
+
+	@Test
+	public void atrTruncatedHistoricalBytes() {
+		// T0 announces five historical bytes, three are present
+		assertFalse(supportsExtendedLength("3B05807300"));
+		// The card capabilities object is longer than the historical bytes
+		assertFalse(supportsExtendedLength("3B0480730000"));
+		// TD1 announces TD2, which is missing
+		assertFalse(supportsExtendedLength("3B8580"));
+	}
+}
@@ -0,0 +1,585 @@
+package org.irmacard.credentials.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.sf.scuba.smartcards.CardServiceException;
+import net.sf.scuba.smartcards.CommandAPDU;
+import net.sf.scuba.smartcards.ProtocolCommand;
+import net.sf.scuba.smartcards.ProtocolCommands;
+import net.sf.scuba.smartcards.ProtocolResponse;
+import net.sf.scuba.smartcards.ProtocolResponses;
+import net.sf.scuba.smartcards.ResponseAPDU;
+import net.sf.scuba.util.Hex;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+
+public class TestSecureMessagingWrapper {
+	static final SecretKey ENC = new SecretKeySpec(Hex.hexStringToBytes(
+			"0123456789ABCDEFFEDCBA98765432100123456789ABCDEF"), "DESede");
+	static final SecretKey MAC = new SecretKeySpec(Hex.hexStringToBytes(
+			"89ABCDEF0123456776543210FEDCBA9889ABCDEF01234567"), "DESede");
+	static final long SSC = 0x1122334455667700L;
+
+	@BeforeClass
+	public static void addProvider() {
+		Security.addProvider(new BouncyCastleProvider());
+	}
+
+	static SecureMessagingWrapper wrapper() throws GeneralSecurityException {
+		return new SecureMessagingWrapper(ENC, MAC, SSC);
+	}
+
+	static byte[] data(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (0x10 + i);
+		}
+		return data;
+	}
+
+	/*
+	 * The known answers below were generated with the wrapper as it was
+	 * before wrapping and unwrapping were done in reusable buffers.
+	 */
+
+	static void assertWrapped(String expected, CommandAPDU command)
+			throws GeneralSecurityException {
+		SecureMessagingWrapper wrapper = wrapper();
+		assertEquals(expected, Hex.bytesToHexString(wrapper.wrap(command).getBytes()));
+		assertEquals(SSC + 1, wrapper.getSendSequenceCounter());
+	}
+
+	@Test
+	public void wrapNoData() throws GeneralSecurityException {
+		assertWrapped("8C2001020A8E08CFB79F20019129AF00",
+				new CommandAPDU(0x80, 0x20, 0x01, 0x02));
+	}
+
+	@Test
+	public void wrapLe256() throws GeneralSecurityException {
+		assertWrapped("0CB000000D9701008E0869728000A7E81B2900",
+				new CommandAPDU(0x00, 0xB0, 0x00, 0x00, 256));
+	}
+
+	/**
+	 * Wraps the command with extended length apdus enabled, and checks that
+	 * wrapping it from a buffer gives the same protected apdu.
+	 */
+	static CommandAPDU wrapExtended(CommandAPDU command) throws GeneralSecurityException {
+		SecureMessagingWrapper wrapper = wrapper();
+		wrapper.setExtendedLength(true);
+		CommandAPDU wrapped = wrapper.wrap(command);
+
+		wrapper = wrapper();
+		wrapper.setExtendedLength(true);
+		ByteBuffer out = ByteBuffer.allocate(wrapped.getBytes().length);
+		assertEquals(out.capacity(), wrapper.wrap(ByteBuffer.wrap(command.getBytes()), out));
+		assertArrayEquals(wrapped.getBytes(), out.array());
+		return wrapped;
+	}
+
+	@Test
+	public void wrapLe257() throws GeneralSecurityException {
+		CommandAPDU command = new CommandAPDU(0x00, 0xB0, 0x00, 0x00, 257);
+		// Without extended length apdus Le is capped at 256
+		assertWrapped("0CB000000D9701008E0869728000A7E81B2900", command);
+
+		CommandAPDU wrapped = wrapExtended(command);
+		String hex = Hex.bytesToHexString(wrapped.getBytes());
+		assertEquals(4 + 3 + 4 + 10 + 2, wrapped.getBytes().length);
+		assertTrue(hex.startsWith("0CB0000000000E970201018E08"));
+		assertTrue(hex.endsWith("0000"));
+		assertEquals(65536, wrapped.getNe());
+	}
+
+	@Test
+	public void wrapResponseOverflow() throws GeneralSecurityException {
+		// DO'87 of 1 + 232 bytes: the protected response takes 250 bytes
+		CommandAPDU wrapped = wrapExtended(new CommandAPDU(0x00, 0xB0, 0x00, 0x00, 231));
+		String hex = Hex.bytesToHexString(wrapped.getBytes());
+		assertEquals(4 + 1 + 3 + 10 + 1, wrapped.getBytes().length);
+		assertTrue(hex.startsWith("0CB000000D9701E78E08"));
+		assertTrue(hex.endsWith("00"));
+		assertEquals(256, wrapped.getNe());
+
+		// DO'87 of 1 + 240 bytes: the protected response takes 258 bytes
+		wrapped = wrapExtended(new CommandAPDU(0x00, 0xB0, 0x00, 0x00, 232));
+		hex = Hex.bytesToHexString(wrapped.getBytes());
+		assertEquals(4 + 3 + 3 + 10 + 2, wrapped.getBytes().length);
+		assertTrue(hex.startsWith("0CB0000000000D9701E88E08"));
+		assertTrue(hex.endsWith("0000"));
+		assertEquals(65536, wrapped.getNe());
+	}
+
+	@Test
+	public void wrapData7() throws GeneralSecurityException {
+		assertWrapped("8C21000015870901A7CDD60FE6587BD88E085CDC8A2A3A1942FB00",
+				new CommandAPDU(0x80, 0x21, 0x00, 0x00, data(7)));
+	}
+
+	@Test
+	public void wrapData8() throws GeneralSecurityException {
+		assertWrapped("8C2200002087110150594B674FF31CEFA6B2088D65345C66"
+				+ "9701108E0882BC20E4223E8C6000",
+				new CommandAPDU(0x80, 0x22, 0x00, 0x00, data(8), 0x10));
+	}
+
+	@Test
+	public void wrapData9() throws GeneralSecurityException {
+		assertWrapped("8C2300001D87110150594B674FF31CEFCE018093329E42C1"
+				+ "8E0853F088C41A82B4CE00",
+				new CommandAPDU(0x80, 0x23, 0x00, 0x00, data(9)));
+	}
+
+	@Test
+	public void wrapAfterClose() throws GeneralSecurityException {
+		String expected = "8C21000015870901A7CDD60FE6587BD88E085CDC8A2A3A1942FB00";
+		CommandAPDU command = new CommandAPDU(0x80, 0x21, 0x00, 0x00, data(7));
+		SecureMessagingWrapper closed = wrapper();
+		closed.close();
+		// Borrows the engine given back to the pool
+		SecureMessagingWrapper wrapper = wrapper();
+		assertEquals(expected, Hex.bytesToHexString(wrapper.wrap(command).getBytes()));
+		wrapper.close();
+		// Borrows an engine again
+		assertEquals(expected, Hex.bytesToHexString(closed.wrap(command).getBytes()));
+		closed.close();
+	}
+
+	/** DO'87 || DO'99 || DO'8E || SW, protecting 11 bytes of data */
+	static final String RESPONSE = "87110150594B674FF31CEF47447DCED479BBA399"
+			+ "0290008E0840E3612C477EA33C9000";
+
+	@Test
+	public void unwrap() throws GeneralSecurityException {
+		SecureMessagingWrapper wrapper = wrapper();
+		byte[] rapdu = Hex.hexStringToBytes(RESPONSE);
+		ResponseAPDU response = wrapper.unwrap(new ResponseAPDU(rapdu), rapdu.length);
+		assertEquals("101112131415161718191A9000", Hex.bytesToHexString(response.getBytes()));
+		assertEquals(SSC + 1, wrapper.getSendSequenceCounter());
+	}
+
+	@Test
+	public void unwrapInvalidMac() throws GeneralSecurityException {
+		SecureMessagingWrapper wrapper = wrapper();
+		byte[] rapdu = Hex.hexStringToBytes(RESPONSE);
+		rapdu[rapdu.length - 3] ^= 0x01;
+		try {
+			wrapper.unwrap(new ResponseAPDU(rapdu), rapdu.length);
+			fail("Invalid MAC accepted");
+		} catch (IllegalStateException e) {
+			assertEquals("Invalid MAC", e.getMessage());
+		}
+		// Still in step with the card
+		assertEquals(SSC + 1, wrapper.getSendSequenceCounter());
+	}
+
+	static final SecretKey AES_ENC = new SecretKeySpec(Hex.hexStringToBytes(
+			"000102030405060708090A0B0C0D0E0F"), "AES");
+	static final SecretKey AES_MAC = new SecretKeySpec(Hex.hexStringToBytes(
+			"F0E0D0C0B0A090807060504030201000"), "AES");
+
+	@Test
+	public void aesMessageIV() throws GeneralSecurityException {
+		SecureMessagingWrapper wrapper = new SecureMessagingWrapper(AES_ENC, AES_MAC,
+				SSC, CipherSuite.AES);
+		CommandAPDU command = new CommandAPDU(0x80, 0x21, 0x00, 0x00, data(16));
+		byte[] first = wrapper.wrap(command).getData();
+		byte[] second = wrapper.wrap(command).getData();
+		// DO'87 holds the marker and two blocks
+		assertEquals(0x87, first[0] & 0xFF);
+		assertEquals(33, first[1]);
+		byte[] ciphertext = Arrays.copyOfRange(first, 3, 35);
+		assertFalse(Arrays.equals(ciphertext, Arrays.copyOfRange(second, 3, 35)));
+
+		// IV = E(KSenc, SSC)
+		Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+		ecb.init(Cipher.ENCRYPT_MODE, AES_ENC);
+		byte[] counter = new byte[16];
+		System.arraycopy(Hex.hexStringToBytes("1122334455667701"), 0, counter, 8, 8);
+		Cipher cbc = Cipher.getInstance("AES/CBC/NoPadding");
+		cbc.init(Cipher.DECRYPT_MODE, AES_ENC, new IvParameterSpec(ecb.doFinal(counter)));
+		assertArrayEquals(SecureMessagingWrapper.pad(data(16), 0, 16, 16), cbc.doFinal(ciphertext));
+	}
+
+	/*
+	 * Sessions with a simulated card, which echoes the command data followed
+	 * by the instruction byte.
+	 */
+
+	static final BigInteger MODULUS = BigInteger.ONE.shiftLeft(1024).subtract(BigInteger.ONE);
+
+	static final SimulatedCardService.Application ECHO = new SimulatedCardService.Application() {
+		public ResponseAPDU process(CommandAPDU command) {
+			byte[] data = command.getData();
+			byte[] response = Arrays.copyOf(data, data.length + 3);
+			response[data.length] = (byte) command.getINS();
+			response[data.length + 1] = (byte) 0x90;
+			return new ResponseAPDU(response);
+		}
+	};
+
+	static SecureMessagingWrapper authenticate(SimulatedCardService card, CipherSuite suite)
+			throws CardServiceException {
+		card.open();
+		return new CardAuthenticationService(card).authenticateCard(MODULUS,
+				BigInteger.valueOf(65537), suite);
+	}
+
+	static ProtocolCommands commands(int n) {
+		ProtocolCommands commands = new ProtocolCommands();
+		for (int i = 0; i < n; i++) {
+			byte[] data = new byte[i + 1];
+			Arrays.fill(data, (byte) i);
+			commands.add(new ProtocolCommand("c" + i, "Command " + i,
+					new CommandAPDU(0x80, 0x30 + i, 0x00, 0x00, data, 0x40)));
+		}
+		return commands;
+	}
+
+	static void assertEcho(int i, ResponseAPDU response) {
+		byte[] expected = new byte[i + 4];
+		Arrays.fill(expected, 0, i + 1, (byte) i);
+		expected[i + 1] = (byte) (0x30 + i);
+		expected[i + 2] = (byte) 0x90;
+		assertArrayEquals(expected, response.getBytes());
+	}
+
+	/**
+	 * Sends the wrapped commands, and gets the responses twice, with the
+	 * MAC of the response to command <code>corrupt</code> broken.
+	 */
+	static ProtocolResponses[] send(SimulatedCardService card, ProtocolCommands commands,
+			int corrupt) throws CardServiceException {
+		ProtocolResponses[] responses = new ProtocolResponses[] {
+				new ProtocolResponses(), new ProtocolResponses() };
+		int i = 0;
+		for (ProtocolCommand c : commands) {
+			byte[] rapdu = card.transmit(c.getAPDU()).getBytes();
+			if (i++ == corrupt) {
+				rapdu[rapdu.length - 3] ^= 0x01;
+			}
+			for (ProtocolResponses r : responses) {
+				r.put(c.getKey(), new ProtocolResponse(c.getKey(), new ResponseAPDU(rapdu)));
+			}
+		}
+		return responses;
+	}
+
+	static void assertSameFailure(RuntimeException expected, RuntimeException actual) {
+		if (expected == null) {
+			assertNull(actual);
+		} else {
+			assertEquals(expected.getClass(), actual.getClass());
+			assertEquals(expected.getMessage(), actual.getMessage());
+		}
+	}
+
+	/**
+	 * Unwraps the same responses one by one and in parallel, and compares
+	 * the responses, the counter afterwards and the exception.
+	 */
+	void checkUnwrapParallel(CipherSuite suite, int n, int corrupt) throws Exception {
+		SimulatedCardService card = new SimulatedCardService("0000", ECHO);
+		SecureMessagingWrapper wrapper = authenticate(card, suite);
+		ProtocolCommands commands = commands(n);
+		long initial = wrapper.getSendSequenceCounter() + 1;
+		wrapper.wrapAsync(commands);
+		ProtocolResponses[] responses = send(card, commands, corrupt);
+
+		RuntimeException sequentialFailure = null;
+		try {
+			wrapper.unWrapAsync(commands, responses[0], initial);
+		} catch (RuntimeException e) {
+			sequentialFailure = e;
+		}
+		long ssc = wrapper.getSendSequenceCounter();
+
+		RuntimeException parallelFailure = null;
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			wrapper.unWrapAsync(commands, responses[1], initial, pool);
+		} catch (RuntimeException e) {
+			parallelFailure = e;
+		} finally {
+			pool.shutdown();
+		}
+
+		assertEquals(corrupt >= 0, sequentialFailure != null);
+		assertSameFailure(sequentialFailure, parallelFailure);
+		assertEquals(ssc, wrapper.getSendSequenceCounter());
+		for (int i = 0; i < n; i++) {
+			ResponseAPDU expected = responses[0].get("c" + i).getAPDU();
+			ResponseAPDU actual = responses[1].get("c" + i).getAPDU();
+			assertArrayEquals(expected.getBytes(), actual.getBytes());
+			if (corrupt < 0 || i < corrupt) {
+				assertEcho(i, actual);
+			}
+		}
+	}
+
+	@Test
+	public void unwrapParallel() throws Exception {
+		for (CipherSuite suite : CipherSuite.values()) {
+			checkUnwrapParallel(suite, 10, -1);
+		}
+	}
+
+	@Test
+	public void unwrapParallelInvalidMac() throws Exception {
+		for (CipherSuite suite : CipherSuite.values()) {
+			checkUnwrapParallel(suite, 10, 6);
+		}
+	}
+
+	static SecureMessagingWrapper wrapper(CipherSuite suite, long ssc)
+			throws GeneralSecurityException {
+		if (suite == CipherSuite.AES) {
+			return new SecureMessagingWrapper(AES_ENC, AES_MAC, ssc, suite);
+		}
+		return new SecureMessagingWrapper(ENC, MAC, ssc, suite);
+	}
+
+	/**
+	 * Wraps the same commands one by one and in parallel, and compares the
+	 * wrapped commands, the counter afterwards and the exception. Command
+	 * <code>fail</code> is too long to be wrapped.
+	 */
+	void checkWrapParallel(CipherSuite suite, int n, int fail) throws Exception {
+		ProtocolCommands[] commands = new ProtocolCommands[] { commands(n), commands(n) };
+		if (fail >= 0) {
+			for (ProtocolCommands c : commands) {
+				c.get(fail).setAPDU(new CommandAPDU(0x80, 0x30, 0x00, 0x00, new byte[0xFFF8]));
+			}
+		}
+
+		SecureMessagingWrapper sequential = wrapper(suite, SSC);
+		RuntimeException sequentialFailure = null;
+		try {
+			sequential.wrapAsync(commands[0]);
+		} catch (RuntimeException e) {
+			sequentialFailure = e;
+		}
+
+		SecureMessagingWrapper parallel = wrapper(suite, SSC);
+		RuntimeException parallelFailure = null;
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			parallel.wrapAsync(commands[1], pool);
+		} catch (RuntimeException e) {
+			parallelFailure = e;
+		} finally {
+			pool.shutdown();
+		}
+
+		assertEquals(fail >= 0, sequentialFailure != null);
+		assertSameFailure(sequentialFailure, parallelFailure);
+		assertEquals(fail >= 0 ? SSC + 2 * fail + 1 : SSC + 2 * n,
+				sequential.getSendSequenceCounter());
+		assertEquals(sequential.getSendSequenceCounter(), parallel.getSendSequenceCounter());
+		for (int i = 0; i < n; i++) {
+			assertArrayEquals(commands[0].get(i).getAPDU().getBytes(),
+					commands[1].get(i).getAPDU().getBytes());
+		}
+	}
+
+	@Test
+	public void wrapParallel() throws Exception {
+		for (CipherSuite suite : CipherSuite.values()) {
+			checkWrapParallel(suite, 10, -1);
+		}
+	}
+
+	@Test
+	public void wrapParallelTooLong() throws Exception {
+		for (CipherSuite suite : CipherSuite.values()) {
+			checkWrapParallel(suite, 10, 6);
+		}
+	}
+
+	@Test
+	public void prewrap() throws Exception {
+		for (CipherSuite suite : CipherSuite.values()) {
+			SimulatedCardService card = new SimulatedCardService("0000", ECHO);
+			SecureMessagingWrapper wrapper = authenticate(card, suite);
+			ForkJoinPool pool = new ForkJoinPool(4);
+			try {
+				// The first step is on the card while the second is wrapped
+				ProtocolCommands step1 = commands(3);
+				long initial1 = wrapper.getSendSequenceCounter() + 1;
+				wrapper.wrapAsync(step1);
+				ProtocolResponses responses1 = send(card, step1, -1)[0];
+
+				ProtocolCommands step2 = commands(9);
+				long initial2 = wrapper.getSendSequenceCounter() + 1;
+				wrapper.prewrapAsync(step2, pool).get();
+				long reserved = wrapper.getSendSequenceCounter();
+				assertEquals(initial2 - 1 + 2 * 9, reserved);
+
+				wrapper.unWrapAsync(step1, responses1, initial1, pool);
+				// Past the counters reserved for the second step
+				assertEquals(reserved, wrapper.getSendSequenceCounter());
+				for (int i = 0; i < 3; i++) {
+					assertEcho(i, responses1.get("c" + i).getAPDU());
+				}
+
+				ProtocolResponses responses2 = send(card, step2, -1)[0];
+				wrapper.unWrapAsync(step2, responses2, initial2, pool);
+				assertEquals(initial2 + 2 * 9, wrapper.getSendSequenceCounter());
+				for (int i = 0; i < 9; i++) {
+					assertEcho(i, responses2.get("c" + i).getAPDU());
+				}
+			} finally {
+				pool.shutdown();
+			}
+		}
+	}
+
+	@Test
+	public void prewrapAcrossSignBoundary() throws Exception {
+		// The reserved counters pass from Long.MAX_VALUE to Long.MIN_VALUE
+		SecureMessagingWrapper wrapper = wrapper(CipherSuite.DESEDE, Long.MAX_VALUE - 4);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ProtocolCommands step1 = commands(1);
+			long initial1 = wrapper.getSendSequenceCounter() + 1;
+			wrapper.wrapAsync(step1);
+			wrapper.prewrapAsync(commands(4), pool).get();
+			long reserved = wrapper.getSendSequenceCounter();
+			assertEquals(Long.MIN_VALUE + 5, reserved);
+
+			// The card indicates an SM error
+			ProtocolResponses responses1 = new ProtocolResponses();
+			responses1.put("c0", new ProtocolResponse("c0",
+					new ResponseAPDU(new byte[] { 0x69, (byte) 0x88 })));
+			try {
+				wrapper.unWrapAsync(step1, responses1, initial1);
+				fail("SM error not detected");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+			assertEquals(reserved, wrapper.getSendSequenceCounter());
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	static final SecretKey HOST_KEY = new SecretKeySpec(Hex.hexStringToBytes(
+			"00112233445566778899AABBCCDDEEFF"), "AES");
+
+	/**
+	 * Checks that the imported wrapper continues the session of the
+	 * exporting one.
+	 */
+	static void assertResumed(SecureMessagingWrapper expected, SecureMessagingWrapper actual) {
+		assertEquals(expected.getCipherSuite(), actual.getCipherSuite());
+		assertEquals(expected.getSendSequenceCounter(), actual.getSendSequenceCounter());
+		assertEquals(expected.isExtendedLength(), actual.isExtendedLength());
+		CommandAPDU command = new CommandAPDU(0x80, 0x22, 0x00, 0x00, data(8), 300);
+		assertArrayEquals(expected.wrap(command).getBytes(), actual.wrap(command).getBytes());
+	}
+
+	@Test
+	public void exportPlain() throws GeneralSecurityException {
+		for (CipherSuite suite : CipherSuite.values()) {
+			for (boolean extended : new boolean[] { false, true }) {
+				SecureMessagingWrapper wrapper = wrapper(suite, SSC);
+				wrapper.setExtendedLength(extended);
+				byte[] state = wrapper.exportState(null);
+				assertEquals(1, state[0]);
+				assertEquals(extended ? 0x02 : 0x00, state[1]);
+				assertResumed(wrapper, SecureMessagingWrapper.importState(state, null));
+			}
+		}
+	}
+
+	@Test
+	public void exportEncrypted() throws GeneralSecurityException {
+		for (CipherSuite suite : CipherSuite.values()) {
+			SecureMessagingWrapper wrapper = wrapper(suite, SSC);
+			wrapper.setExtendedLength(true);
+			byte[] state = wrapper.exportState(HOST_KEY);
+			assertEquals(0x03, state[1]);
+			// The keys are not in the clear
+			byte[] plain = wrapper.exportState(null);
+			byte[] key = Arrays.copyOfRange(plain, plain.length - 16, plain.length);
+			for (int i = 0; i + key.length <= state.length; i++) {
+				assertFalse(Arrays.equals(key, Arrays.copyOfRange(state, i, i + key.length)));
+			}
+			assertResumed(wrapper, SecureMessagingWrapper.importState(state, HOST_KEY));
+		}
+	}
+
+	@Test
+	public void importTampered() throws GeneralSecurityException {
+		byte[] state = wrapper().exportState(HOST_KEY);
+		// The flags are authenticated as well as the body
+		for (int i : new int[] { 1, 2, 20, state.length - 1 }) {
+			byte[] tampered = state.clone();
+			tampered[i] ^= (i == 1 ? 0x02 : 0x01);
+			try {
+				SecureMessagingWrapper.importState(tampered, HOST_KEY);
+				fail("Tampered state accepted");
+			} catch (AEADBadTagException e) {
+				// expected
+			}
+		}
+	}
+
+	static void assertInvalidState(byte[] state, SecretKey hostKey)
+			throws GeneralSecurityException {
+		try {
+			SecureMessagingWrapper.importState(state, hostKey);
+			fail("Invalid state accepted");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void importInvalid() throws GeneralSecurityException {
+		byte[] plain = wrapper().exportState(null);
+		byte[] encrypted = wrapper().exportState(HOST_KEY);
+		assertTrue(plain.length > 4);
+
+		// Encrypted flag and host key do not match
+		assertInvalidState(plain, HOST_KEY);
+		assertInvalidState(encrypted, null);
+
+		// Truncated
+		assertInvalidState(Arrays.copyOf(plain, plain.length - 1), null);
+		assertInvalidState(Arrays.copyOf(plain, 5), null);
+		assertInvalidState(Arrays.copyOf(plain, 1), null);
+		assertInvalidState(Arrays.copyOf(encrypted, 10), HOST_KEY);
+
+		// Trailing data, unknown version or flags
+		assertInvalidState(Arrays.copyOf(plain, plain.length + 1), null);
+		byte[] version = plain.clone();
+		version[0] = 2;
+		assertInvalidState(version, null);
+		byte[] flags = plain.clone();
+		flags[1] = 0x04;
+		assertInvalidState(flags, null);
+	}
+}